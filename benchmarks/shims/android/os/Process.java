@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * Stands in for the framework class on a plain JVM, where the stub jar
+ * throws. The library's background threads lower their priority with it.
+ */
+public class Process {
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static void setThreadPriority(int priority) {
+    }
+}
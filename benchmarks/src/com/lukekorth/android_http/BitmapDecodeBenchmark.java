@@ -0,0 +1,84 @@
+package com.lukekorth.android_http;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a 2048x1536 JPEG at the sample size {@link BitmapDecoder} picks
+ * for the requested size, 0 being a full resolution decode. BitmapFactory is
+ * native framework code that does not run on a plain JVM, so the image is
+ * decoded with ImageIO's source subsampling instead. ImageIO still decodes
+ * every block and drops pixels afterwards, where BitmapFactory scales while
+ * decoding, so a device gains more time than shown here. The allocation rate
+ * (-prof gc) shrinks the same way on both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BitmapDecodeBenchmark {
+
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 1536;
+
+    /** The size the bitmap is displayed at, both sides. */
+    @Param({ "0", "512", "128" })
+    int requested;
+
+    private byte[] mJpeg;
+    private int mSampleSize;
+
+    @Setup
+    public void setUp() throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++)
+                image.setRGB(x, y, (x * 255 / WIDTH) << 16 | (y * 255 / HEIGHT) << 8 | (x ^ y) & 0xff);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        mJpeg = out.toByteArray();
+
+        mSampleSize = BitmapDecoder.calculateInSampleSize(WIDTH, HEIGHT, requested, requested);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(mJpeg));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(mSampleSize, mSampleSize, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+            in.close();
+        }
+    }
+}
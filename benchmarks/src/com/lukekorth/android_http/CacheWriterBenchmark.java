@@ -0,0 +1,81 @@
+package com.lukekorth.android_http;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What {@link CacheWriter} costs the request thread, storing and reading
+ * validators, against the batched flush to the {@link ValidatorStore} it
+ * moves to its background thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CacheWriterBenchmark {
+
+    /** Validators written between two flushes. */
+    @Param({ "1", "32" })
+    int batch;
+
+    private File mDirectory;
+    private CacheWriter mWriter;
+    private String[] mUrls;
+    private int mVersion;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("android-http", "validators");
+        mDirectory.delete();
+        mWriter = new CacheWriter(new ValidatorStore(mDirectory, ValidatorStore.DEFAULT_MAX_SIZE));
+
+        mUrls = new String[batch];
+        for (int i = 0; i < batch; i++)
+            mUrls[i] = "http://example.com/resource/" + i + ".json";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mWriter.clear();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    /** A download storing its validators, written behind. */
+    @Benchmark
+    public ValidatorStore.Validators putAndGet() {
+        String url = mUrls[mVersion++ % batch];
+        mWriter.putValidators(url, "\"" + mVersion + "\"", null);
+        return mWriter.getValidators(url);
+    }
+
+    /** The background flush of a batch of validators to disk. */
+    @Benchmark
+    public void flush() {
+        mVersion++;
+        for (String url : mUrls)
+            mWriter.putValidators(url, "\"" + mVersion + "\"", null);
+
+        mWriter.flush();
+    }
+}
@@ -0,0 +1,72 @@
+package com.lukekorth.android_http;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a form post body with {@link FormEncoder}, fresh and reused,
+ * against the URLEncoder based encoding it replaced. Run with -prof gc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FormBenchmark {
+
+    @Param({ "4", "64" })
+    int pairs;
+
+    private final FormEncoder mReused = new FormEncoder();
+    private List<NameValuePair> mPairs;
+
+    @Setup
+    public void setUp() {
+        mPairs = new ArrayList<NameValuePair>(pairs);
+        for (int i = 0; i < pairs; i++)
+            mPairs.add(new BasicNameValuePair("field" + i, "value " + i + " & ünïcode/" + i));
+    }
+
+    @Benchmark
+    public int formEncoder() {
+        return new FormEncoder(mPairs).size();
+    }
+
+    @Benchmark
+    public int formEncoderReused() {
+        mReused.reset();
+        return mReused.addAll(mPairs).size();
+    }
+
+    @Benchmark
+    public byte[] urlEncoder() throws UnsupportedEncodingException {
+        StringBuilder form = new StringBuilder();
+        for (NameValuePair pair : mPairs) {
+            if (form.length() > 0)
+                form.append('&');
+
+            form.append(URLEncoder.encode(pair.getName(), "UTF-8")).append('=')
+                    .append(URLEncoder.encode(pair.getValue(), "UTF-8"));
+        }
+
+        return form.toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,222 @@
+package com.lukekorth.android_http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A minimal keep-alive HTTP/1.1 server on the loopback interface so the
+ * benchmarks never touch the network. Every response is canned, only
+ * fixed length request bodies are understood.
+ *
+ * <ul>
+ * <li>/small.json and /large.json, a json array of objects, not cacheable</li>
+ * <li>/etag.json, cacheable but always stale, answered with a 304 when the
+ * request carries the current ETag</li>
+ * <li>/fresh.json, cacheable for an hour</li>
+ * <li>/upload, drains the request body and answers "ok"</li>
+ * </ul>
+ */
+class LoopbackServer {
+
+    static final int SMALL_ELEMENTS = 10;
+    static final int LARGE_ELEMENTS = 10000;
+
+    private static final String ETAG = "\"benchmark-v1\"";
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "loopback-server");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Set<Socket> mSockets = Collections.synchronizedSet(new HashSet<Socket>());
+    private final byte[] mSmallJson = json(SMALL_ELEMENTS);
+    private final byte[] mLargeJson = json(LARGE_ELEMENTS);
+
+    private volatile boolean mRunning = true;
+
+    LoopbackServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    void shutdown() throws IOException {
+        mRunning = false;
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+
+        // keep-alive connections are blocked reading the next request
+        synchronized (mSockets) {
+            for (Socket socket : mSockets)
+                socket.close();
+        }
+    }
+
+    private void accept() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mSockets.add(socket);
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // closed by shutdown
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            while (mRunning) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0)
+                    break;
+
+                HashMap<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0)
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                }
+
+                String contentLength = headers.get("content-length");
+                if (contentLength != null)
+                    skip(in, Long.parseLong(contentLength));
+
+                String path = requestLine.split(" ")[1];
+                respond(out, path, headers);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            mSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void respond(OutputStream out, String path, HashMap<String, String> headers)
+            throws IOException {
+        if (path.startsWith("/small.json")) {
+            write(out, "200 OK", "Cache-Control: no-store\r\n", mSmallJson);
+        } else if (path.startsWith("/large.json")) {
+            write(out, "200 OK", "Cache-Control: no-store\r\n", mLargeJson);
+        } else if (path.startsWith("/etag.json")) {
+            String cacheHeaders = "Cache-Control: max-age=0\r\nETag: " + ETAG + "\r\n";
+            if (ETAG.equals(headers.get("if-none-match"))) {
+                write(out, "304 Not Modified", cacheHeaders, null);
+            } else {
+                write(out, "200 OK", cacheHeaders, mSmallJson);
+            }
+        } else if (path.startsWith("/fresh.json")) {
+            write(out, "200 OK", "Cache-Control: max-age=3600\r\n", mSmallJson);
+        } else if (path.startsWith("/upload")) {
+            write(out, "200 OK", "Cache-Control: no-store\r\n", "ok".getBytes("UTF-8"));
+        } else {
+            write(out, "404 Not Found", "", new byte[0]);
+        }
+    }
+
+    private static void write(OutputStream out, String status, String headers, byte[] body)
+            throws IOException {
+        StringBuilder response = new StringBuilder(128);
+        response.append("HTTP/1.1 ").append(status).append("\r\n");
+        response.append(headers);
+        if (body != null) {
+            response.append("Content-Type: application/json; charset=utf-8\r\n");
+            response.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        response.append("\r\n");
+
+        out.write(response.toString().getBytes("US-ASCII"));
+        if (body != null)
+            out.write(body);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n')
+                return line.toString();
+            if (c != '\r')
+                line.append((char) c);
+        }
+
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read == -1)
+                throw new IOException("unexpected end of request body");
+
+            count -= read;
+        }
+    }
+
+    static byte[] json(int elements) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(elements * 96);
+        StringBuilder json = new StringBuilder(elements * 96);
+        json.append('[');
+        for (int i = 0; i < elements; i++) {
+            if (i > 0)
+                json.append(',');
+
+            json.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i)
+                    .append("\",\"price\":").append(i * 1.25)
+                    .append(",\"tags\":[\"a\",\"b\",\"c\"],\"active\":").append(i % 2 == 0)
+                    .append('}');
+        }
+        json.append(']');
+
+        try {
+            out.write(json.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,62 @@
+package com.lukekorth.android_http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a json response with {@link HttpHelper.JsonHandler} from a
+ * {@link LoopbackTransport}, so the numbers are the cost of the handler and
+ * the transport's connection without any socket I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    private static final String URL = "http://loopback/items.json";
+
+    @Param({ "10", "10000" })
+    int elements;
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private final HttpHelper.JsonHandler<List<RequestBenchmark.Item>> mHandler = new HttpHelper.JsonHandler<List<RequestBenchmark.Item>>(
+            RequestBenchmark.ITEMS);
+    private URL mUrl;
+
+    @Setup
+    public void setUp() throws IOException {
+        mUrl = new URL(URL);
+        mTransport.respond(URL, new LoopbackTransport.Response(HttpURLConnection.HTTP_OK)
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(LoopbackServer.json(elements)));
+    }
+
+    @Benchmark
+    public List<RequestBenchmark.Item> json() throws IOException {
+        HttpURLConnection urlConnection = mTransport.open(mUrl);
+        try {
+            return mHandler.handleResponse(urlConnection, urlConnection.getInputStream(),
+                    new RequestMetrics("GET", URL));
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.lukekorth.android_http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a body without any I/O, so changes to {@link ResponseReader} and
+ * the {@link BufferPool} can be compared in isolation. Run with -prof gc,
+ * the interesting number is the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    int size;
+
+    /** Whether the reader is told the size up front, as with Content-Length. */
+    @Param({ "true", "false" })
+    boolean knownLength;
+
+    private byte[] mBody;
+
+    @Setup
+    public void setUp() {
+        mBody = new byte[size];
+        for (int i = 0; i < size; i++)
+            mBody[i] = (byte) ('a' + i % 26);
+    }
+
+    @Benchmark
+    public byte[] readBytes() throws IOException {
+        return ResponseReader.readBytes(new ByteArrayInputStream(mBody), knownLength ? size : -1);
+    }
+
+    @Benchmark
+    public String readString() throws IOException {
+        return ResponseReader.readString(new ByteArrayInputStream(mBody), knownLength ? size
+                : -1, ResponseReader.DEFAULT_CHARSET);
+    }
+}
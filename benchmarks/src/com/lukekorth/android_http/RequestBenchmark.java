@@ -0,0 +1,148 @@
+package com.lukekorth.android_http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.reflect.TypeToken;
+import com.integralblue.httpresponsecache.HttpResponseCache;
+
+/**
+ * Times HttpHelper's request paths against a {@link LoopbackServer} with the
+ * same response cache installed that HttpHelper installs. HttpHelper itself
+ * needs an Android Context so it cannot be constructed on a plain JVM,
+ * requests go through its {@link UrlConnectionTransport} and are read by its
+ * {@link HttpHelper.JsonHandler} and {@link ResponseReader} instead.
+ *
+ * Run with the gc profiler to see the allocation rate as well:
+ *
+ * <pre>
+ * java -cp ... org.openjdk.jmh.Main RequestBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    static final Type ITEMS = new TypeToken<List<Item>>() {}.getType();
+
+    static class Item {
+        int id;
+        String name;
+        double price;
+        List<String> tags;
+        boolean active;
+    }
+
+    private final Transport mTransport = new UrlConnectionTransport();
+    private final HttpHelper.JsonHandler<List<Item>> mHandler = new HttpHelper.JsonHandler<List<Item>>(
+            ITEMS);
+
+    private LoopbackServer mServer;
+    private File mCacheDir;
+    private HttpResponseCache mCache;
+    private MultipartBody mUpload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer();
+
+        mCacheDir = File.createTempFile("android-http", "bench");
+        mCacheDir.delete();
+        mCacheDir.mkdirs();
+        mCache = HttpResponseCache.install(mCacheDir, 10 * 1024 * 1024);
+
+        mUpload = new MultipartBody().addField("description", "benchmark").addPart("file",
+                "image.jpg", "image/jpeg", new byte[256 * 1024]);
+
+        // prime the entries the cached paths depend on
+        get(mServer.url("/etag.json"), null);
+        get(mServer.url("/fresh.json"), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        mCache.delete();
+    }
+
+    @Benchmark
+    public List<Item> smallJson() throws IOException {
+        return get(mServer.url("/small.json"), "no-cache");
+    }
+
+    @Benchmark
+    public List<Item> largeJson() throws IOException {
+        return get(mServer.url("/large.json"), "no-cache");
+    }
+
+    /** VALIDATE_CACHE, the response cache turns it into a 304 round trip. */
+    @Benchmark
+    public List<Item> revalidate() throws IOException {
+        return get(mServer.url("/etag.json"), "max-age=0");
+    }
+
+    /** getCached, served from disk without a network request. */
+    @Benchmark
+    public List<Item> cachedRead() throws IOException {
+        return get(mServer.url("/fresh.json"), "only-if-cached");
+    }
+
+    @Benchmark
+    public String multipartUpload() throws IOException {
+        HttpURLConnection urlConnection = mTransport.open(new URL(mServer.url("/upload")));
+        try {
+            urlConnection.setDoOutput(true);
+            urlConnection.setRequestMethod("POST");
+            urlConnection.addRequestProperty("Cache-Control", "no-cache");
+            urlConnection.setRequestProperty("Content-Type", mUpload.getContentType());
+            urlConnection.setFixedLengthStreamingMode((int) mUpload.getContentLength());
+
+            OutputStream output = urlConnection.getOutputStream();
+            try {
+                mUpload.writeTo(output, null);
+            } finally {
+                output.close();
+            }
+
+            return ResponseReader.readString(urlConnection, urlConnection.getInputStream());
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+
+    private List<Item> get(String url, String cacheControl) throws IOException {
+        HttpURLConnection urlConnection = mTransport.open(new URL(url));
+        try {
+            if (cacheControl != null)
+                urlConnection.addRequestProperty("Cache-Control", cacheControl);
+
+            return mHandler.handleResponse(urlConnection, urlConnection.getInputStream(),
+                    new RequestMetrics("GET", url));
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+}
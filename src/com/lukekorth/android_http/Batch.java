@@ -0,0 +1,108 @@
+package com.lukekorth.android_http;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a list of requests on at most {@code parallelism} threads. Every
+ * thread works through the list one request at a time, so the connection it
+ * returned to the pool after one request is picked up again by its next
+ * request to the same host instead of a new one being opened.
+ */
+class Batch<T> {
+
+    private static final String TAG = "android-http";
+
+    interface Request<T> {
+        public T execute(String url);
+    }
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new RequestDispatcher.DispatcherThreadFactory());
+
+    private static class Result<T> {
+        final int index;
+        final T response;
+
+        Result(int index, T response) {
+            this.index = index;
+            this.response = response;
+        }
+    }
+
+    private final List<String> mUrls;
+    private final Request<T> mRequest;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final LinkedBlockingQueue<Result<T>> mResults = new LinkedBlockingQueue<Result<T>>();
+
+    private volatile boolean mCancelled;
+
+    private Batch(List<String> urls, Request<T> request) {
+        mUrls = urls;
+        mRequest = request;
+    }
+
+    /**
+     * Blocks until every request has finished or the calling thread is
+     * interrupted, {@code callback} is called on the calling thread in the
+     * order the requests finish.
+     *
+     * @return the number of requests that produced a response.
+     */
+    static <T> int run(List<String> urls, int parallelism, Request<T> request,
+            BatchCallback<T> callback) {
+        return new Batch<T>(urls, request).run(parallelism, callback);
+    }
+
+    private int run(int parallelism, BatchCallback<T> callback) {
+        int count = mUrls.size();
+        int workers = Math.max(1, Math.min(parallelism, count));
+        for (int i = 0; i < workers; i++) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+
+        int succeeded = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                Result<T> result = mResults.take();
+                if (result.response != null)
+                    succeeded++;
+
+                callback.onResponse(result.index, mUrls.get(result.index), result.response);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // requests that have not started yet are skipped
+            mCancelled = true;
+        }
+
+        return succeeded;
+    }
+
+    private void work() {
+        int index;
+        while (!mCancelled && (index = mNext.getAndIncrement()) < mUrls.size()) {
+            T response = null;
+            try {
+                response = mRequest.execute(mUrls.get(index));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Exception occured while running batch request " + e);
+            }
+
+            mResults.add(new Result<T>(index, response));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.lukekorth.android_http;
+
+/**
+ * Receives each response of a batch as soon as it is available, on the
+ * thread that started the batch.
+ *
+ * @param index of the request in the list given to the batch
+ * @param response or null if the request failed
+ */
+public interface BatchCallback<T> {
+    public void onResponse(int index, String url, T response);
+}
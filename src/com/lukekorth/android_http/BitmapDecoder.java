@@ -0,0 +1,145 @@
+package com.lukekorth.android_http;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Decodes bitmaps from an encoded buffer. The bounds are decoded first so
+ * large images can be subsampled down to the requested size, and on
+ * Honeycomb and up the pixels are decoded into a released bitmap from the
+ * reuse pool when one fits.
+ */
+class BitmapDecoder {
+
+    private static final int MAX_POOL_SIZE = 8;
+    // Build.VERSION_CODES.KITKAT, newer than the SDK this is built against
+    private static final int KITKAT = 19;
+
+    private final LinkedList<Bitmap> mReusable = new LinkedList<Bitmap>();
+
+    /**
+     * @param reqWidth the width the bitmap will be displayed at or 0 to
+     *            decode at full resolution
+     * @param reqHeight the height the bitmap will be displayed at or 0 to
+     *            decode at full resolution
+     */
+    Bitmap decode(byte[] data, int offset, int length, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            addInBitmapOptions(options);
+
+            if (options.inBitmap != null) {
+                try {
+                    return BitmapFactory.decodeByteArray(data, offset, length, options);
+                } catch (IllegalArgumentException e) {
+                    // the pooled bitmap could not be reused after all
+                    options.inBitmap = null;
+                }
+            }
+        }
+
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
+    /**
+     * Adds a bitmap nothing uses any more to the reuse pool, its pixels are
+     * overwritten by a later decode.
+     */
+    void release(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !bitmap.isMutable()
+                || bitmap.isRecycled())
+            return;
+
+        synchronized (mReusable) {
+            mReusable.addFirst(bitmap);
+            if (mReusable.size() > MAX_POOL_SIZE)
+                mReusable.removeLast();
+        }
+    }
+
+    void clear() {
+        synchronized (mReusable) {
+            mReusable.clear();
+        }
+    }
+
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+
+        if (reqWidth <= 0 || reqHeight <= 0)
+            return inSampleSize;
+
+        // the largest power of two that keeps both sides at least as large as
+        // requested
+        while ((width / (inSampleSize * 2)) >= reqWidth
+                && (height / (inSampleSize * 2)) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+
+        return inSampleSize;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void addInBitmapOptions(BitmapFactory.Options options) {
+        options.inMutable = true;
+
+        synchronized (mReusable) {
+            Iterator<Bitmap> iterator = mReusable.iterator();
+            while (iterator.hasNext()) {
+                Bitmap candidate = iterator.next();
+                if (candidate.isRecycled()) {
+                    iterator.remove();
+                } else if (canUseForInBitmap(candidate, options)) {
+                    iterator.remove();
+                    options.inBitmap = candidate;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT < KITKAT) {
+            // before KitKat the sizes have to match exactly and the image
+            // cannot be subsampled
+            return candidate.getWidth() == options.outWidth
+                    && candidate.getHeight() == options.outHeight
+                    && options.inSampleSize == 1;
+        }
+
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
+
+        // getAllocationByteCount() is not in the SDK this is built against,
+        // the byte count never exceeds it
+        return byteCount <= candidate.getRowBytes() * candidate.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+
+        return 4;
+    }
+}
@@ -0,0 +1,182 @@
+package com.lukekorth.android_http;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An in memory LRU of decoded bitmaps bounded by the number of bytes the
+ * bitmaps use rather than by their count.
+ *
+ * Every bitmap handed to a caller is counted, see {@link #acquire(String)}.
+ * A bitmap goes to the decoder's reuse pool only once it is no longer
+ * cached and every caller it was handed to has released it, so its pixels
+ * are never overwritten while someone may still draw it.
+ */
+class BitmapMemoryCache {
+
+    /** What is known about a bitmap that was decoded for {@code key}. */
+    private static class Holder {
+        final String key;
+        int refs;
+        boolean shared;
+        boolean pooled;
+
+        Holder(String key) {
+            this.key = key;
+        }
+    }
+
+    private final LinkedHashMap<String, Bitmap> mBitmaps = new LinkedHashMap<String, Bitmap>(16,
+            0.75f, true);
+    // bitmaps nobody holds on to any more are dropped with their holder
+    private final WeakHashMap<Bitmap, Holder> mHolders = new WeakHashMap<Bitmap, Holder>();
+    private final BitmapDecoder mPool;
+    private int mMaxSize;
+    private int mSize;
+
+    BitmapMemoryCache(int maxSize, BitmapDecoder pool) {
+        mMaxSize = maxSize;
+        mPool = pool;
+    }
+
+    static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * @return the cached bitmap, counted as handed out, or null.
+     */
+    synchronized Bitmap acquire(String key) {
+        Bitmap bitmap = mBitmaps.get(key);
+        if (bitmap == null)
+            return null;
+
+        if (bitmap.isRecycled()) {
+            remove(key);
+            return null;
+        }
+
+        acquire(holderFor(key, bitmap));
+        return bitmap;
+    }
+
+    /**
+     * Counts a bitmap decoded for {@code key} as handed out.
+     *
+     * @return false if every caller it was shared with has released it
+     *         already and it went to the reuse pool, it must not be used
+     *         then.
+     */
+    synchronized boolean acquire(String key, Bitmap bitmap) {
+        Holder holder = mHolders.get(bitmap);
+        if (holder == null || holder.pooled || !holder.key.equals(key))
+            return false;
+
+        acquire(holder);
+        return true;
+    }
+
+    /**
+     * Caches a newly decoded bitmap and counts it as handed out in one step.
+     */
+    synchronized void putAndAcquire(String key, Bitmap bitmap) {
+        put(key, bitmap);
+        acquire(mHolders.get(bitmap));
+    }
+
+    /**
+     * Caches a newly decoded bitmap, it is not counted as handed out until
+     * it is acquired.
+     */
+    synchronized void put(String key, Bitmap bitmap) {
+        // a bitmap from the reuse pool starts over for its new key
+        mHolders.put(bitmap, new Holder(key));
+
+        int size = sizeOf(bitmap);
+        if (size > mMaxSize)
+            return;
+
+        Bitmap previous = mBitmaps.put(key, bitmap);
+        if (previous != null && previous != bitmap) {
+            mSize -= sizeOf(previous);
+            evicted(key, previous);
+        } else if (previous != null) {
+            mSize -= size;
+        }
+        mSize += size;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Undoes one {@link #acquire(String)}. The bitmap is pooled for reuse if
+     * that was the last one and it is no longer cached.
+     */
+    synchronized void release(Bitmap bitmap) {
+        Holder holder = mHolders.get(bitmap);
+        if (holder == null || holder.refs == 0)
+            return;
+
+        holder.refs--;
+        if (holder.refs == 0 && mBitmaps.get(holder.key) != bitmap)
+            pool(holder, bitmap);
+    }
+
+    synchronized void remove(String key) {
+        Bitmap previous = mBitmaps.remove(key);
+        if (previous != null)
+            mSize -= sizeOf(previous);
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    synchronized void clear() {
+        mBitmaps.clear();
+        mSize = 0;
+    }
+
+    private Holder holderFor(String key, Bitmap bitmap) {
+        Holder holder = mHolders.get(bitmap);
+        if (holder == null) {
+            holder = new Holder(key);
+            mHolders.put(bitmap, holder);
+        }
+
+        return holder;
+    }
+
+    private static void acquire(Holder holder) {
+        holder.refs++;
+        holder.shared = true;
+    }
+
+    private void evicted(String key, Bitmap bitmap) {
+        // a bitmap that was never handed out may still be on its way to
+        // the callers that asked for it
+        Holder holder = mHolders.get(bitmap);
+        if (holder != null && holder.shared && holder.refs == 0 && holder.key.equals(key))
+            pool(holder, bitmap);
+    }
+
+    private void pool(Holder holder, Bitmap bitmap) {
+        holder.pooled = true;
+        mPool.release(bitmap);
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Map.Entry<String, Bitmap>> iterator = mBitmaps.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = iterator.next();
+            mSize -= sizeOf(eldest.getValue());
+            iterator.remove();
+            evicted(eldest.getKey(), eldest.getValue());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.lukekorth.android_http;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of byte arrays so reading responses does not allocate a new buffer
+ * on every request. Pooled buffers come in power of two sizes from
+ * {@link #MIN_BUFFER_SIZE} up to {@code sizeLimit}, one free list per size,
+ * so a buffer is found without searching. A returned buffer is dropped
+ * rather than pooled once the pool holds {@code sizeLimit} bytes. Larger
+ * requests get an array of exactly the size asked for that is never pooled.
+ */
+class BufferPool {
+
+    static final int MIN_BUFFER_SIZE = 1024;
+
+    private static final int MIN_SHIFT = 10;
+
+    private static final BufferPool sDefault = new BufferPool(256 * 1024);
+
+    // mFree[i] holds buffers of MIN_BUFFER_SIZE << i bytes
+    private final ArrayList<ArrayList<byte[]>> mFree = new ArrayList<ArrayList<byte[]>>();
+    private final int mSizeLimit;
+    private int mPooledBytes;
+
+    BufferPool(int sizeLimit) {
+        mSizeLimit = sizeLimit;
+        for (int size = MIN_BUFFER_SIZE; size > 0 && size <= sizeLimit; size <<= 1)
+            mFree.add(new ArrayList<byte[]>());
+    }
+
+    static BufferPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @return a buffer of at least {@code length} bytes, its contents are
+     *         undefined.
+     */
+    byte[] getBuf(int length) {
+        int index = indexFor(length);
+        if (index >= mFree.size())
+            return new byte[length];
+
+        synchronized (this) {
+            ArrayList<byte[]> free = mFree.get(index);
+            if (!free.isEmpty()) {
+                byte[] buf = free.remove(free.size() - 1);
+                mPooledBytes -= buf.length;
+                return buf;
+            }
+        }
+
+        return new byte[MIN_BUFFER_SIZE << index];
+    }
+
+    /**
+     * Hands a buffer from {@link #getBuf(int)} back, the caller must not use
+     * it afterwards.
+     */
+    void returnBuf(byte[] buf) {
+        if (buf == null)
+            return;
+
+        int index = indexFor(buf.length);
+        if (index >= mFree.size() || buf.length != MIN_BUFFER_SIZE << index)
+            return;
+
+        synchronized (this) {
+            if (mPooledBytes + buf.length > mSizeLimit)
+                return;
+
+            mFree.get(index).add(buf);
+            mPooledBytes += buf.length;
+        }
+    }
+
+    /**
+     * @return the index of the smallest size class holding {@code length}
+     *         bytes.
+     */
+    private static int indexFor(int length) {
+        if (length <= MIN_BUFFER_SIZE)
+            return 0;
+
+        // bits needed for length - 1, the exponent of the next power of two
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,126 @@
+package com.lukekorth.android_http;
+
+import android.os.Process;
+
+import com.integralblue.httpresponsecache.HttpResponseCache;
+import com.lukekorth.android_http.ValidatorStore.Validators;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the cache journal flush and validator persistence off of the request
+ * thread. Writes are batched and applied on a background thread no later
+ * than {@link #MAX_DELAY_MS} after the first pending write, validators that
+ * have not been written yet are still visible to
+ * {@link #getValidators(String)}.
+ */
+class CacheWriter {
+
+    static final long MAX_DELAY_MS = 2 * 1000;
+
+    private final ValidatorStore mStore;
+    private final ScheduledExecutorService mExecutor;
+
+    private final HashMap<String, Validators> mPending = new HashMap<String, Validators>();
+    private boolean mCacheDirty;
+    private boolean mScheduled;
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    CacheWriter(ValidatorStore store) {
+        mStore = store;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "android-http cache writer");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    synchronized void putValidators(String url, String etag, String lastModified) {
+        mPending.put(url, new Validators(etag, lastModified));
+        schedule();
+    }
+
+    synchronized Validators getValidators(String url) {
+        Validators validators = mPending.get(url);
+        if (validators != null)
+            return validators;
+
+        return mStore.get(url);
+    }
+
+    synchronized void cacheUpdated() {
+        mCacheDirty = true;
+        schedule();
+    }
+
+    /**
+     * Drops pending and stored validators, used when the cache is deleted.
+     */
+    synchronized void clear() {
+        mPending.clear();
+        mStore.clear();
+    }
+
+    /**
+     * Synchronously writes everything that is pending.
+     */
+    void flush() {
+        HashMap<String, Validators> pending;
+        boolean cacheDirty;
+
+        synchronized (this) {
+            pending = new HashMap<String, Validators>(mPending);
+            cacheDirty = mCacheDirty;
+            mCacheDirty = false;
+            mScheduled = false;
+        }
+
+        if (cacheDirty) {
+            HttpResponseCache cache = HttpResponseCache.getInstalled();
+            if (cache != null)
+                cache.flush();
+        }
+
+        if (!pending.isEmpty()) {
+            for (Map.Entry<String, Validators> entry : pending.entrySet())
+                mStore.put(entry.getKey(), entry.getValue().etag, entry.getValue().lastModified);
+            mStore.flush();
+
+            // entries stay visible to getValidators until they are stored
+            synchronized (this) {
+                for (Map.Entry<String, Validators> entry : pending.entrySet()) {
+                    if (mPending.get(entry.getKey()) == entry.getValue())
+                        mPending.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mExecutor.schedule(mWrite, MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
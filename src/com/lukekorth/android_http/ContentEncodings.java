@@ -0,0 +1,79 @@
+package com.lukekorth.android_http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Negotiated gzip and deflate content coding. Asking for it explicitly turns
+ * off the transparent gzip of HttpURLConnection, so bodies arrive, and are
+ * cached, exactly as the server compressed them and are decoded here while
+ * they are read.
+ */
+class ContentEncodings {
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    static InputStream decode(HttpURLConnection urlConnection, InputStream in)
+            throws IOException {
+        String encoding = urlConnection.getContentEncoding();
+        if (encoding == null || urlConnection.getContentLength() == 0)
+            return in;
+
+        encoding = encoding.trim().toLowerCase(Locale.US);
+        if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+            return new GZIPInputStream(in, BUFFER_SIZE);
+
+        if (encoding.equals("deflate"))
+            return inflate(in);
+
+        return in;
+    }
+
+    /**
+     * "deflate" is meant to be zlib wrapped but some servers send a raw
+     * deflate stream, the first two bytes tell them apart.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int cmf = pushback.read();
+        int flg = pushback.read();
+        if (flg != -1)
+            pushback.unread(flg);
+        if (cmf != -1)
+            pushback.unread(cmf);
+
+        boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(pushback, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // an inflater passed in is not released by close()
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    static byte[] gzip(byte[] body, int offset, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes, BUFFER_SIZE);
+        gzip.write(body, offset, length);
+        gzip.close();
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,191 @@
+package com.lukekorth.android_http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+
+/**
+ * Encodes names and values as application/x-www-form-urlencoded UTF-8
+ * straight into a growable byte buffer, the same encoding
+ * {@link java.net.URLEncoder} produces without the intermediate Strings. An
+ * encoder can be {@link #reset()} and reused, its buffer is kept.
+ */
+public class FormEncoder {
+
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A',
+            'B', 'C', 'D', 'E', 'F' };
+
+    private byte[] mBuffer;
+    private int mCount;
+
+    public FormEncoder() {
+        this(64);
+    }
+
+    /**
+     * @param capacity initial size of the buffer in bytes.
+     */
+    public FormEncoder(int capacity) {
+        mBuffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Creates an encoder sized for and holding {@code nameValuePairs}.
+     */
+    public FormEncoder(List<NameValuePair> nameValuePairs) {
+        this(estimateSize(nameValuePairs));
+        addAll(nameValuePairs);
+    }
+
+    public FormEncoder add(String name, String value) {
+        if (mCount > 0)
+            write('&');
+
+        encode(name);
+        write('=');
+        if (value != null)
+            encode(value);
+
+        return this;
+    }
+
+    public FormEncoder addAll(List<NameValuePair> nameValuePairs) {
+        for (int i = 0, size = nameValuePairs.size(); i < size; i++) {
+            NameValuePair pair = nameValuePairs.get(i);
+            add(pair.getName(), pair.getValue());
+        }
+
+        return this;
+    }
+
+    /**
+     * Appends {@code encoded} as UTF-8 without escaping it, it should
+     * already be form encoded.
+     */
+    public FormEncoder addEncoded(String encoded) {
+        int length = encoded.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = encoded.charAt(i);
+            if (c >= 0x80) {
+                writeUtf8(encoded.substring(i));
+                break;
+            }
+
+            mBuffer[mCount++] = (byte) c;
+        }
+
+        return this;
+    }
+
+    public FormEncoder reset() {
+        mCount = 0;
+        return this;
+    }
+
+    /** @return the number of encoded bytes. */
+    public int size() {
+        return mCount;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mCount);
+    }
+
+    /** The encoded bytes, only the first {@link #size()} are valid. */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(mBuffer, 0, mCount, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int estimateSize(List<NameValuePair> nameValuePairs) {
+        int size = 0;
+        for (int i = 0, count = nameValuePairs.size(); i < count; i++) {
+            NameValuePair pair = nameValuePairs.get(i);
+            size += pair.getName().length() + 2;
+            if (pair.getValue() != null)
+                size += pair.getValue().length();
+        }
+
+        // leave some room for escapes
+        return size + size / 4;
+    }
+
+    private void encode(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                write(c);
+            } else if (c == ' ') {
+                write('+');
+            } else if (c < 0x80) {
+                escape(c);
+            } else if (c < 0x800) {
+                escape(0xc0 | (c >> 6));
+                escape(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                escape(0xf0 | (codePoint >> 18));
+                escape(0x80 | ((codePoint >> 12) & 0x3f));
+                escape(0x80 | ((codePoint >> 6) & 0x3f));
+                escape(0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // an unpaired surrogate, encoded as '?' like String.getBytes
+                escape('?');
+            } else {
+                escape(0xe0 | (c >> 12));
+                escape(0x80 | ((c >> 6) & 0x3f));
+                escape(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void writeUtf8(String s) {
+        try {
+            byte[] bytes = s.getBytes("UTF-8");
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mCount, bytes.length);
+            mCount += bytes.length;
+        } catch (UnsupportedEncodingException e) {
+            // every platform supports UTF-8
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void escape(int b) {
+        ensureCapacity(3);
+        mBuffer[mCount++] = '%';
+        mBuffer[mCount++] = HEX[(b >> 4) & 0xf];
+        mBuffer[mCount++] = HEX[b & 0xf];
+    }
+
+    private void write(int c) {
+        ensureCapacity(1);
+        mBuffer[mCount++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mCount + extra <= mBuffer.length)
+            return;
+
+        byte[] buffer = new byte[Math.max(mBuffer.length * 2, mCount + extra)];
+        System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+        mBuffer = buffer;
+    }
+}
@@ -1,118 +1,494 @@
-
 package com.lukekorth.android_http;
 
+import android.Manifest;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 import com.integralblue.httpresponsecache.HttpResponseCache;
+import com.lukekorth.android_http.ValidatorStore.Validators;
 
 import org.apache.http.NameValuePair;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes cached HTTP requests. An instance is safe to share between threads,
+ * one built with {@link Builder} can serve the whole process. Settings for
+ * some requests only are made on a derived instance, which is cheap:
+ *
+ * <pre>
+ * HttpHelper authorized = http.newBuilder().setHeaderField(&quot;Authorization&quot;, token).build();
+ * </pre>
+ *
+ * The response cache, validator store and debug flag are set up once per
+ * process by the first instance.
+ */
 public class HttpHelper {
 
     public static final int CACHE = -1;
     public static final int NO_CACHE = 0;
     public static final int VALIDATE_CACHE = 1;
+    /**
+     * Returns a cached response right away, even one that has expired, and
+     * refreshes an expired one in the background. Goes to the network only
+     * when nothing is cached.
+     */
+    public static final int STALE_WHILE_REVALIDATE = 2;
+    /**
+     * Reads from the cache straight away when there is no connectivity,
+     * otherwise gives the network a short deadline before falling back to
+     * the cache. Expired responses are used when falling back. Telling
+     * whether there is connectivity requires the app to hold
+     * ACCESS_NETWORK_STATE, without it the network is always tried first.
+     */
+    public static final int OFFLINE_FIRST = 3;
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    public static final int DEFAULT_UPLOAD_CHUNK_SIZE = 256 * 1024; // 256 KiB
+    public static final int DEFAULT_BATCH_PARALLELISM = 4;
 
     private static final String TAG = "android-http";
     private static final String UAS = "android-http";
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final String STALE_WARNING = "110";
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final int OFFLINE_FIRST_TIMEOUT = 4 * 1000; // 4 seconds in milliseconds
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final int MAX_ERROR_BODY_BYTES = 4 * 1024;
     private static boolean DEBUG_HTTP;
 
-    private Context mContext;
-    private static Gson gson = null;
-
-    private SharedPreferences mPrefs;
-
-    private int connectTimeout = 10 * 1000; // 10 seconds in milliseconds
-    private int readTimeout = 60 * 1000; // 60 seconds in milliseconds
+    private static final long DEFAULT_CACHE_SIZE = 10; // 10 MiB
+
+    private final Context mContext;
+    private static volatile JsonAdapters sJsonAdapters = null;
+    // warmed again whenever the Gson is replaced
+    private static final CopyOnWriteArrayList<Type> sWarmTypes = new CopyOnWriteArrayList<Type>();
+
+    private static boolean sInitialized;
+    private static File sCacheDir;
+    private static long sCacheSize;
+
+    private static CacheWriter sCacheWriter;
+    private static UploadCheckpoints sUploadCheckpoints;
+
+    private static final BitmapDecoder sBitmapDecoder = new BitmapDecoder();
+    private static final BitmapMemoryCache sBitmapMemoryCache = new BitmapMemoryCache(
+            (int) (Runtime.getRuntime().maxMemory() / 8), sBitmapDecoder);
+    private volatile RequestConfig mConfig;
+    private final Prefetcher mPrefetcher = new Prefetcher(this);
+
+    private static final InFlightRequests sInFlightRequests = new InFlightRequests();
+
+    private static final MetricsRegistry sMetrics = new MetricsRegistry();
+    // reads from the response cache always go through the platform
+    private static final Transport sPlatformTransport = new UrlConnectionTransport();
+
+    // disconnects requests that are still running at their deadline
+    private static final ScheduledExecutorService sDeadlines = Executors
+            .newSingleThreadScheduledExecutor(new RequestDispatcher.DispatcherThreadFactory());
+    private static final ExecutorService sHedgeExecutor = Executors
+            .newCachedThreadPool(new RequestDispatcher.DispatcherThreadFactory());
+    private static volatile RequestListener sRequestListener;
+    private static volatile Tracer sTracer;
+    private static volatile ObjectCache sObjectCache;
+
+    private final ResponseHandler<String> mStringHandler = new ResponseHandler<String>() {
+        @Override
+        public String handleResponse(HttpURLConnection urlConnection, InputStream in,
+                RequestMetrics metrics) throws IOException {
+            return ResponseReader.readString(urlConnection, in);
+        }
+    };
+
+    /** Reads and discards the body, used to fill the cache. */
+    private static final ResponseHandler<Boolean> sDrainHandler = new ResponseHandler<Boolean>() {
+        @Override
+        public Boolean handleResponse(HttpURLConnection urlConnection, InputStream in,
+                RequestMetrics metrics) throws IOException {
+            ResponseReader.skipAll(in);
+            return Boolean.TRUE;
+        }
+    };
 
-    private String cookies = null;
-    private HashMap<String, String> additionalHeaderFields;
+    private final ResponseHandler<byte[]> mBytesHandler = new ResponseHandler<byte[]>() {
+        @Override
+        public byte[] handleResponse(HttpURLConnection urlConnection, InputStream in,
+                RequestMetrics metrics) throws IOException {
+            return ResponseReader.readBytes(urlConnection, in);
+        }
+    };
 
     public HttpHelper(Context context) {
-        Init(context, (long) 10); // 10 MiB
+        this(context, DEFAULT_CACHE_SIZE);
     }
 
+    /**
+     * @param size of the response cache in MiB, only used by the first
+     *            instance created in the process.
+     */
     public HttpHelper(Context context, long size) {
-        Init(context, size);
+        this(context, size, RequestConfig.DEFAULT);
     }
 
-    private void Init(Context context, long size) {
+    private HttpHelper(Context context, long size, RequestConfig config) {
         mContext = context;
+        mConfig = config;
+
+        Init(context, size);
+    }
+
+    /**
+     * Builds an HttpHelper whose settings cannot change after it is built.
+     */
+    public static class Builder {
+
+        private final Context mContext;
+        private long mCacheSize = DEFAULT_CACHE_SIZE;
+
+        private int mConnectTimeout;
+        private int mReadTimeout;
+        private String mCookies;
+        private TreeMap<String, String> mHeaders;
+        private boolean mWriteBehind;
+        private boolean mCoalesceRequests;
+        private boolean mReuseConnections;
+        private boolean mCompressResponses;
+        private int mRequestCompressionThreshold;
+        private int mMaxStale;
+        private int mMinFresh;
+        private long mDeadlineMs;
+        private int mMaxRetries;
+        private int mHedgePercentile;
+        private RequestDispatcher mDispatcher;
+        private Transport mTransport;
+
+        public Builder(Context context) {
+            this(context, RequestConfig.DEFAULT);
+        }
+
+        private Builder(Context context, RequestConfig config) {
+            mContext = context;
+            mConnectTimeout = config.connectTimeout;
+            mReadTimeout = config.readTimeout;
+            mCookies = config.cookies;
+            mHeaders = new TreeMap<String, String>(config.headers);
+            mWriteBehind = config.writeBehind;
+            mCoalesceRequests = config.coalesceRequests;
+            mReuseConnections = config.reuseConnections;
+            mCompressResponses = config.compressResponses;
+            mRequestCompressionThreshold = config.requestCompressionThreshold;
+            mMaxStale = config.maxStale;
+            mMinFresh = config.minFresh;
+            mDeadlineMs = config.deadlineMs;
+            mMaxRetries = config.maxRetries;
+            mHedgePercentile = config.hedgePercentile;
+            mDispatcher = config.dispatcher;
+            mTransport = config.transport;
+        }
+
+        /**
+         * @param size of the response cache in MiB, only used if this is the
+         *            first HttpHelper created in the process.
+         */
+        public Builder setCacheSize(long size) {
+            mCacheSize = size;
+            return this;
+        }
+
+        public Builder setConnectTimeout(int seconds) {
+            mConnectTimeout = seconds * 1000;
+            return this;
+        }
+
+        public Builder setReadTimeout(int seconds) {
+            mReadTimeout = seconds * 1000;
+            return this;
+        }
+
+        public Builder setCookies(List<NameValuePair> nameValuePairs) {
+            StringBuilder cookies = new StringBuilder();
+            for (NameValuePair pair : nameValuePairs) {
+                if (cookies.length() > 0)
+                    cookies.append("; ");
+
+                cookies.append(pair.getName()).append('=').append(pair.getValue());
+            }
+
+            mCookies = cookies.length() > 0 ? cookies.toString() : null;
+            return this;
+        }
+
+        public Builder setHeaderField(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        public Builder clearHeaders() {
+            mHeaders.clear();
+            return this;
+        }
+
+        /** @see HttpHelper#setWriteBehind(boolean) */
+        public Builder setWriteBehind(boolean enabled) {
+            mWriteBehind = enabled;
+            return this;
+        }
+
+        /** @see HttpHelper#setRequestCoalescing(boolean) */
+        public Builder setRequestCoalescing(boolean enabled) {
+            mCoalesceRequests = enabled;
+            return this;
+        }
+
+        /** @see HttpHelper#setConnectionReuse(boolean) */
+        public Builder setConnectionReuse(boolean enabled) {
+            mReuseConnections = enabled;
+            return this;
+        }
+
+        /**
+         * When enabled, which is the default, gzip and deflate responses are
+         * requested and decoded as they are read. They are kept compressed
+         * in the cache.
+         */
+        public Builder setResponseCompression(boolean enabled) {
+            mCompressResponses = enabled;
+            return this;
+        }
+
+        /**
+         * Gzips post bodies of at least {@code bytes} bytes, -1, the
+         * default, never compresses them. Only for servers that accept a
+         * Content-Encoding on requests.
+         */
+        public Builder setRequestCompressionThreshold(int bytes) {
+            mRequestCompressionThreshold = bytes;
+            return this;
+        }
+
+        /**
+         * Accept cached responses that expired up to {@code seconds} ago, -1,
+         * the default, only accepts fresh ones. Per call through
+         * {@link HttpHelper#newBuilder()}.
+         */
+        public Builder setMaxStale(int seconds) {
+            mMaxStale = seconds;
+            return this;
+        }
+
+        /**
+         * Only accept cached responses that stay fresh for at least
+         * {@code seconds} more, -1 for the default.
+         */
+        public Builder setMinFresh(int seconds) {
+            mMinFresh = seconds;
+            return this;
+        }
+
+        /**
+         * Bounds the total time of a get or post, including retries, 0, the
+         * default, only applies the connect and read timeouts. A request
+         * still running at the deadline is disconnected.
+         */
+        public Builder setDeadlineMillis(long millis) {
+            mDeadlineMs = millis;
+            return this;
+        }
+
+        /**
+         * Retries a get that failed with an I/O error or a 408, 429 or 5xx
+         * response up to {@code retries} times, after an exponentially
+         * growing, jittered delay. 0, the default, never retries.
+         */
+        public Builder setMaxRetries(int retries) {
+            mMaxRetries = retries;
+            return this;
+        }
+
+        /**
+         * Starts a second attempt at a get when the first has not received a
+         * response within the given percentile, for example 95, of the
+         * host's recent time to first byte. The first attempt to succeed is
+         * used and the other one disconnected. 0, the default, never hedges.
+         * Nothing is hedged until the host has enough history.
+         */
+        public Builder setHedging(int percentile) {
+            mHedgePercentile = percentile;
+            return this;
+        }
+
+        /**
+         * Opens the connections network requests are made over, the platform's
+         * HttpURLConnection by default. Only posts and gets made with
+         * {@link HttpHelper#NO_CACHE} use another transport, gets that read
+         * or fill the response cache, uploads and downloads always use the
+         * platform's, see {@link Transport}.
+         */
+        public Builder setTransport(Transport transport) {
+            mTransport = transport;
+            return this;
+        }
+
+        /** @see HttpHelper#setDispatcher(RequestDispatcher) */
+        public Builder setDispatcher(RequestDispatcher dispatcher) {
+            mDispatcher = dispatcher;
+            return this;
+        }
+
+        public HttpHelper build() {
+            return new HttpHelper(mContext, mCacheSize, buildConfig());
+        }
+
+        private RequestConfig buildConfig() {
+            return new RequestConfig(mConnectTimeout, mReadTimeout, mCookies, mHeaders,
+                    mWriteBehind, mCoalesceRequests, mReuseConnections, mCompressResponses,
+                    mRequestCompressionThreshold, mMaxStale, mMinFresh, mDeadlineMs, mMaxRetries,
+                    mHedgePercentile, mDispatcher, mTransport);
+        }
+    }
+
+    /**
+     * Returns a builder with the settings of this instance, for an instance
+     * that differs in a few settings. The new instance shares the cache and
+     * the dispatcher with this one.
+     */
+    public Builder newBuilder() {
+        return new Builder(mContext, mConfig);
+    }
+
+    private static void Init(Context context, long size) {
+        synchronized (HttpHelper.class) {
+            if (sInitialized)
+                return;
+
+            DEBUG_HTTP = IsDebug(context);
+            if (DEBUG_HTTP && sTracer == null)
+                sTracer = new LogTracer();
+
+            sCacheDir = new File(context.getCacheDir(), "http");
+            sCacheSize = size * 1024 * 1024;
+            installCache();
 
-        DEBUG_HTTP = IsDebug();
+            if (DEBUG_HTTP) {
+                Log.d(TAG, "Android-Http Initialized");
+                HttpResponseCache cache = HttpResponseCache.getInstalled();
+                if (cache != null)
+                    Log.d(TAG, "Requests: " + cache.getRequestCount() + " Network Requests: "
+                            + cache.getNetworkCount() + " Cache served requests: "
+                            + cache.getHitCount());
+            }
+
+            sUploadCheckpoints = new UploadCheckpoints(new File(context.getFilesDir(),
+                    "http-uploads"), UploadCheckpoints.DEFAULT_MAX_SIZE);
+            sCacheWriter = new CacheWriter(new ValidatorStore(new File(context.getCacheDir(),
+                    "http-validators"), ValidatorStore.DEFAULT_MAX_SIZE));
+
+            // ETags used to be kept in shared preferences without any
+            // bound, drop them now that they live in the validator store
+            SharedPreferences legacy = context.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+            if (!legacy.getAll().isEmpty())
+                legacy.edit().clear().commit();
 
+            sInitialized = true;
+        }
+    }
+
+    private static synchronized void installCache() {
         try {
-            HttpResponseCache.install(new File(context.getCacheDir(),
-                    "http"), size * 1024 * 1024);
+            HttpResponseCache.install(sCacheDir, sCacheSize);
         } catch (IOException e) {
             if (DEBUG_HTTP)
                 Log.w(TAG,
                         "IOException occured while getting cache dir " + e);
         }
+    }
 
-        if (DEBUG_HTTP) {
-            Log.d(TAG, "Android-Http Initialized");
-            Log.d(TAG, "Requests: "
-                    + HttpResponseCache.getInstalled().getRequestCount() +
-                    " Network Requests: "
-                    + HttpResponseCache.getInstalled().getNetworkCount() +
-                    " Cache served requests: "
-                    + HttpResponseCache.getInstalled().getHitCount());
-        }
-
-        mPrefs = context.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+    /*
+     * The setters below replace the config of this instance, requests already
+     * running keep the config they started with. Prefer building a separate
+     * instance with Builder when an instance is shared between threads.
+     */
 
-        additionalHeaderFields = new HashMap<String, String>();
+    public synchronized void setCookies(List<NameValuePair> nameValuePairs) {
+        mConfig = newBuilder().setCookies(nameValuePairs).buildConfig();
     }
 
-    public void setCookies(List<NameValuePair> nameValuePairs) {
-        for (NameValuePair pair : nameValuePairs) {
-            cookies += pair.getName() + "=" + pair.getValue() + "; ";
-        }
-
-        cookies = cookies.substring(0, cookies.length() - 2);
+    public synchronized void clearHeaders() {
+        mConfig = newBuilder().clearHeaders().buildConfig();
     }
 
-    public void clearHeaders() {
-        additionalHeaderFields.clear();
+    public synchronized void setHeaderField(String name, String value) {
+        mConfig = newBuilder().setHeaderField(name, value).buildConfig();
     }
 
-    public void setHeaderField(String name, String value) {
-        additionalHeaderFields.put(name, value);
+    /**
+     * When enabled, which is the default, the cache journal flush and ETag
+     * persistence that follow a cacheable response are batched on a
+     * background thread instead of being done before the response is
+     * returned. Call {@link #flush()} to write anything pending, for example
+     * before the process is shut down.
+     */
+    public synchronized void setWriteBehind(boolean enabled) {
+        mConfig = newBuilder().setWriteBehind(enabled).buildConfig();
     }
 
     public void flush() {
         if (DEBUG_HTTP)
             Log.d(TAG, "Flushing cache to disk...");
 
+        sCacheWriter.flush();
+
         HttpResponseCache cache = HttpResponseCache.getInstalled();
         if (cache != null) {
             cache.flush();
@@ -141,110 +517,107 @@ public class HttpHelper {
             }
         }
 
-        mPrefs.edit().clear().commit();
-    }
+        // deleting uninstalls the cache, other instances still rely on it
+        installCache();
 
-    public void setConnectTimeout(int seconds) {
-        connectTimeout = seconds * 1000;
-    }
+        sCacheWriter.clear();
+        sBitmapMemoryCache.clear();
 
-    public void setReadTimeout(int seconds) {
-        readTimeout = seconds * 1000;
+        ObjectCache objects = sObjectCache;
+        if (objects != null)
+            objects.clear();
+        sBitmapDecoder.clear();
     }
 
-    public String get(String url) {
-        return get(url, CACHE);
+    public synchronized void setConnectTimeout(int seconds) {
+        mConfig = newBuilder().setConnectTimeout(seconds).buildConfig();
     }
 
-    public String get(String url, int cache) {
-        HttpURLConnection urlConnection = null;
-        String response = null;
-        boolean additionalFetch = false;
-
-        if (DEBUG_HTTP) {
-            Log.d(TAG, "url: " + url);
-        }
-
-        try {
-            urlConnection = (HttpURLConnection) new URL(url).openConnection();
-
-            urlConnection.setConnectTimeout(connectTimeout);
-            urlConnection.setReadTimeout(readTimeout);
-            urlConnection.setRequestProperty("User-Agent", UAS);
-
-            if (cookies != null)
-                urlConnection.setRequestProperty("Cookie", cookies);
-
-            addHeaders(urlConnection);
-
-            if (cache == NO_CACHE) {
-                urlConnection.addRequestProperty("Cache-Control", "no-cache");
-            } else if (cache == VALIDATE_CACHE) {
-                String etag = mPrefs.getString(url, null);
-
-                if (etag != null)
-                    urlConnection.addRequestProperty("If-None-Match", etag);
-            }
-
-            if (DEBUG_HTTP)
-                Log.d(TAG, "request headers: " + urlConnection.getRequestProperties().toString());
+    public synchronized void setReadTimeout(int seconds) {
+        mConfig = newBuilder().setReadTimeout(seconds).buildConfig();
+    }
 
-            int responseCode = urlConnection.getResponseCode();
-            if (responseCode == 304) {
-                if (DEBUG_HTTP)
-                    Log.d(TAG,
-                            "Server responded with 304 not modified, attempting to load from cache");
+    /**
+     * When enabled, concurrent identical GET requests made from any
+     * HttpHelper in the process share one network request and one result.
+     * Typed requests then hand the same object to every caller, so only
+     * enable it when those objects are treated as read only. Off by default.
+     */
+    public synchronized void setRequestCoalescing(boolean enabled) {
+        mConfig = newBuilder().setRequestCoalescing(enabled).buildConfig();
+    }
 
-                response = getCached(url);
-                additionalFetch = true;
+    /**
+     * When enabled, a connection whose response was read successfully is
+     * returned to the keep-alive pool instead of being disconnected, so the
+     * next request to the same host skips TCP and TLS setup. Off by default.
+     * {@link #setConnectionPool(int, long)} bounds the pool and
+     * {@link MetricsRegistry.HostMetrics#getConnectionsReused()} shows how
+     * often a pooled connection was used.
+     */
+    public synchronized void setConnectionReuse(boolean enabled) {
+        mConfig = newBuilder().setConnectionReuse(enabled).buildConfig();
+    }
 
-                if (response == null) {
-                    if (DEBUG_HTTP)
-                        Log.d(TAG, "Response was not in the cache, fetching from server");
+    /**
+     * Limits the keep-alive pool shared by every HttpURLConnection in the
+     * process. The pool reads its limits once, when the first connection is
+     * made, so this has to be called before any request, for example in
+     * Application.onCreate().
+     *
+     * @param maxIdleConnections kept per host, 0 disables keep-alive
+     * @param keepAliveDurationMs how long an idle connection is kept, only
+     *            honored by the platform HttpURLConnection from Android 4.4
+     */
+    public static void setConnectionPool(int maxIdleConnections, long keepAliveDurationMs) {
+        System.setProperty("http.keepAlive", Boolean.toString(maxIdleConnections > 0));
+        System.setProperty("http.maxConnections", Integer.toString(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", Long.toString(keepAliveDurationMs));
+    }
 
-                    response = get(url);
-                }
-            } else {
-                response = readStream(urlConnection.getInputStream());
+    /**
+     * Sets the dispatcher used by the async methods of this instance, by
+     * default the process wide {@link RequestDispatcher#getDefault()} is used.
+     */
+    public synchronized void setDispatcher(RequestDispatcher dispatcher) {
+        mConfig = newBuilder().setDispatcher(dispatcher).buildConfig();
+    }
 
-                if (response != null && cache != NO_CACHE) {
-                    flush();
+    /**
+     * Per host latency, bytes and cache outcomes of every request made by any
+     * HttpHelper in this process.
+     */
+    public static MetricsRegistry getMetrics() {
+        return sMetrics;
+    }
 
-                    String cacheETag = urlConnection.getHeaderField("ETag");
-                    if (cacheETag != null)
-                        mPrefs.edit().putString(url, cacheETag).commit();
-                }
-            }
+    /**
+     * Sets a listener that is given the metrics of each request as it
+     * finishes, or null to remove it.
+     */
+    public static void setRequestListener(RequestListener listener) {
+        sRequestListener = listener;
+    }
 
-            if (DEBUG_HTTP && !additionalFetch) {
-                Log.d(TAG, "response code: " + responseCode);
-                Log.d(TAG, "response headers: " + urlConnection.getHeaderFields().toString());
-                Log.d(TAG, "response payload: " + response);
-            }
-        } catch (MalformedURLException e) {
-            if (DEBUG_HTTP)
-                Log.w(TAG, "MalformedURLException occured while parsing url " + e);
-        } catch (IOException e) {
-            if (DEBUG_HTTP) {
-                response = readStream(urlConnection.getErrorStream());
-                Log.d(TAG, "error response: " + response);
+    /**
+     * Sets the tracer request and response dumps are given to, or null to not
+     * trace. Debuggable builds trace every request to logcat by default.
+     */
+    public static void setTracer(Tracer tracer) {
+        sTracer = tracer;
+    }
 
-                Log.w(TAG,
-                        "IOException occured while trying to open connection or getting input stream. "
-                                + e);
-            }
-        } finally {
-            if (response == null) {
-                if (DEBUG_HTTP)
-                    Log.d(TAG, "All attempts have failed, attempting to fall back to cache");
+    public String get(String url) {
+        return get(url, CACHE);
+    }
 
-                response = getCached(url);
+    public String get(final String url, final int cache) {
+        return coalesce("string", url, cache, new Callable<String>() {
+            @Override
+            public String call() {
+                return get(url, cache, mStringHandler);
             }
-
-            urlConnection.disconnect();
-        }
-
-        return response;
+        });
     }
 
     public String get(String url, List<NameValuePair> nameValuePairs) {
@@ -254,9 +627,6 @@ public class HttpHelper {
     public String get(String url, List<NameValuePair> nameValuePairs, int cache) {
         url = url + "?" + encodeParameters(nameValuePairs);
 
-        if (DEBUG_HTTP)
-            Log.d(TAG, "query string: " + nameValuePairs.toString());
-
         return get(url, cache);
     }
 
@@ -265,22 +635,52 @@ public class HttpHelper {
         return get(url, type, CACHE);
     }
 
-    @SuppressWarnings({
-            "unchecked", "rawtypes"
-    })
+    @SuppressWarnings("rawtypes")
     public <T> T get(String url, Class type, int cache) {
-        if (gson == null) {
-            gson = new Gson();
-        }
+        return this.<T> get(url, (Type) type, cache);
+    }
 
-        try {
-            return (T) gson.fromJson(get(url, cache), type);
-        } catch (JsonSyntaxException e) {
-            if (DEBUG_HTTP)
-                Log.d(TAG, "Error while parsing json: " + e);
+    public <T> T get(String url, Type type) {
+        return this.<T> get(url, type, CACHE);
+    }
 
-            return null;
+    public <T> T get(final String url, final Type type, final int cache) {
+        return this.<T> getJson(url, type, cache, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T getJson(final String url, final Type type, final int cache,
+            final boolean reuseConnection) {
+        RequestConfig config = mConfig;
+        final ObjectCache objects = cache == CACHE ? sObjectCache : null;
+        final String key = objects != null ? ObjectCache.getKey(url, type, config.key) : null;
+        if (objects != null) {
+            Object value = objects.getFresh(key, Math.max(0, config.minFresh) * 1000L);
+            if (value != null) {
+                if (DEBUG_HTTP)
+                    Log.d(TAG, "Object served from memory: " + url);
+
+                return (T) value;
+            }
         }
+
+        return coalesce(type.toString(), url, cache, new Callable<T>() {
+            @Override
+            public T call() {
+                try {
+                    ResponseHandler<T> handler = new JsonHandler<T>(type);
+                    if (objects != null)
+                        handler = new ObjectCacheHandler<T>(handler, objects, key, url);
+
+                    return get(url, cache, handler, reuseConnection);
+                } catch (JsonParseException e) {
+                    if (DEBUG_HTTP)
+                        Log.d(TAG, "Error while parsing json: " + e);
+
+                    return null;
+                }
+            }
+        });
     }
 
     @SuppressWarnings("rawtypes")
@@ -288,496 +688,2088 @@ public class HttpHelper {
         return get(url, nameValuePairs, type, CACHE);
     }
 
-    @SuppressWarnings({
-            "unchecked", "rawtypes"
-    })
+    @SuppressWarnings("rawtypes")
     public <T> T get(String url, List<NameValuePair> nameValuePairs, Class type, int cache) {
-        if (gson == null) {
-            gson = new Gson();
+        return this.<T> get(url, nameValuePairs, (Type) type, cache);
+    }
+
+    public <T> T get(String url, List<NameValuePair> nameValuePairs, Type type) {
+        return this.<T> get(url, nameValuePairs, type, CACHE);
+    }
+
+    public <T> T get(String url, List<NameValuePair> nameValuePairs, Type type, int cache) {
+        url = url + "?" + encodeParameters(nameValuePairs);
+
+        return this.<T> get(url, type, cache);
+    }
+
+    /**
+     * Fetches every url in {@code urls} with up to
+     * {@link #DEFAULT_BATCH_PARALLELISM} requests at a time.
+     *
+     * @return the responses in the order of {@code urls}, null for requests
+     *         that failed.
+     */
+    public List<String> getAll(List<String> urls, int cache) {
+        ResultList<String> results = new ResultList<String>(urls.size());
+        getAll(urls, cache, DEFAULT_BATCH_PARALLELISM, results);
+        return results.mResults;
+    }
+
+    public <T> List<T> getAll(List<String> urls, Type type, int cache) {
+        ResultList<T> results = new ResultList<T>(urls.size());
+        getAll(urls, type, cache, DEFAULT_BATCH_PARALLELISM, results);
+        return results.mResults;
+    }
+
+    /**
+     * Fetches every url in {@code urls} with at most {@code parallelism}
+     * requests running at once and hands each response to {@code callback}
+     * as soon as it arrives. Connections are returned to the keep-alive pool
+     * after each request instead of being closed, so the batch pays for
+     * connection setup and TLS handshakes once per thread and host. Blocks
+     * until the whole batch has finished.
+     *
+     * @return the number of requests that succeeded.
+     */
+    public int getAll(List<String> urls, final int cache, int parallelism,
+            BatchCallback<String> callback) {
+        return Batch.run(urls, parallelism, new Batch.Request<String>() {
+            @Override
+            public String execute(final String url) {
+                return coalesce("string", url, cache, new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return get(url, cache, mStringHandler, true);
+                    }
+                });
+            }
+        }, callback);
+    }
+
+    public <T> int getAll(List<String> urls, final Type type, final int cache, int parallelism,
+            BatchCallback<T> callback) {
+        return Batch.run(urls, parallelism, new Batch.Request<T>() {
+            @Override
+            public T execute(String url) {
+                return HttpHelper.this.<T> getJson(url, type, cache, true);
+            }
+        }, callback);
+    }
+
+    private static class ResultList<T> implements BatchCallback<T> {
+
+        private final ArrayList<T> mResults;
+
+        public ResultList(int size) {
+            mResults = new ArrayList<T>(size);
+            for (int i = 0; i < size; i++)
+                mResults.add(null);
+        }
+
+        @Override
+        public void onResponse(int index, String url, T response) {
+            mResults.set(index, response);
         }
+    }
 
+    /**
+     * Streams a top level json array and hands each element to the callback
+     * as soon as it has been parsed, so the whole array is never held in
+     * memory.
+     *
+     * @return the number of elements delivered or -1 if the request failed
+     *         before any was. Elements already delivered are never delivered
+     *         a second time, if the connection drops part way through the
+     *         array the elements delivered so far are counted instead of
+     *         falling back to the cache, and the request finishes with
+     *         {@link RequestMetrics#OUTCOME_PARTIAL}.
+     */
+    public <T> int getJsonArray(String url, Type elementType, int cache,
+            JsonElementCallback<T> callback) {
         try {
-            return (T) gson.fromJson(get(url, nameValuePairs, cache), type);
-        } catch (JsonSyntaxException e) {
+            Integer count = get(url, cache, new JsonArrayHandler<T>(elementType, callback));
+            return count == null ? -1 : count;
+        } catch (JsonParseException e) {
             if (DEBUG_HTTP)
                 Log.d(TAG, "Error while parsing json: " + e);
 
-            return null;
+            return -1;
         }
     }
 
-    public String getCached(String url) {
-        HttpURLConnection urlConnection = null;
-        String response = null;
+    public <T> int getJsonArray(String url, Type elementType, JsonElementCallback<T> callback) {
+        return getJsonArray(url, elementType, CACHE, callback);
+    }
+
+    private <T> T get(String url, int cache, ResponseHandler<T> handler) {
+        return get(url, cache, handler, false);
+    }
+
+    /**
+     * @param reuseConnection when true a connection whose response was read
+     *            successfully is returned to the keep-alive pool instead of
+     *            being disconnected.
+     */
+    private <T> T get(String url, int cache, ResponseHandler<T> handler, boolean reuseConnection) {
+        RequestConfig config = mConfig;
+        RequestMetrics metrics = new RequestMetrics("GET", url);
 
         if (DEBUG_HTTP) {
             Log.d(TAG, "url: " + url);
         }
 
-        try {
-            urlConnection = (HttpURLConnection) new URL(url).openConnection();
-            urlConnection.addRequestProperty("Cache-Control", "only-if-cached");
+        if (cache == STALE_WHILE_REVALIDATE || (cache == OFFLINE_FIRST && !isOnline())) {
+            T response = readCached(url, handler, metrics, true, config);
+            if (response != null) {
+                metrics.setOutcome(RequestMetrics.OUTCOME_CACHE_HIT);
+                finished(metrics);
 
-            InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-            response = readStream(in);
+                if (metrics.isStale() && cache == STALE_WHILE_REVALIDATE)
+                    refresh(url);
 
-            if (DEBUG_HTTP) {
-                Log.d(TAG, "response code: " + urlConnection.getResponseCode());
-                Log.d(TAG, "response headers: " + urlConnection.getHeaderFields().toString());
-                Log.d(TAG, "cache payload: " + response);
+                return response;
             }
-        } catch (FileNotFoundException e) {
-            if (DEBUG_HTTP)
-                Log.w(TAG, "The requested resource was not cached");
 
-            response = null;
-        } catch (IOException e) {
             if (DEBUG_HTTP)
-                Log.w(TAG,
-                        "IOException occured while trying to open connection or getting input stream. "
-                                + e);
-        } finally {
-            urlConnection.disconnect();
+                Log.d(TAG, "Nothing cached, going to the network");
+
+            metrics = new RequestMetrics("GET", url);
         }
 
-        return response;
-    }
+        long deadline = config.deadlineMs > 0 ? System.nanoTime() + config.deadlineMs * 1000000
+                : 0;
+        // a streamed response may already have been partly handed out
+        boolean streaming = handler instanceof ResponseHandler.Streaming;
+        RequestFuture<?> owner = RequestFuture.current();
+
+        Attempt<T> attempt = null;
+        for (int retry = 0;; retry++) {
+            if (attempt != null)
+                metrics = new RequestMetrics(attempt.metrics);
+
+            attempt = new Attempt<T>(metrics, config, owner);
+            long hedgeDelay = streaming ? 0 : getHedgeDelay(url, config);
+            if (hedgeDelay > 0) {
+                attempt = hedge(attempt, url, cache, handler, reuseConnection, deadline, hedgeDelay);
+                if (attempt.error != null)
+                    throw attempt.error;
+            } else {
+                attempt(attempt, url, cache, handler, reuseConnection, deadline);
+            }
 
-    public String getCached(String url, List<NameValuePair> nameValuePairs) {
-        if (nameValuePairs != null && nameValuePairs.size() > 0)
-            url = url + "?" + encodeParameters(nameValuePairs);
+            if (attempt.response != null || !attempt.retryable || streaming
+                    || retry >= config.maxRetries || !RetryPolicy.backoff(retry, deadline))
+                break;
 
-        if (DEBUG_HTTP) {
-            Log.d(TAG, "Attempting to load directly from cache, return null if not cached");
-            Log.d(TAG, "query string: " + nameValuePairs.toString());
+            if (DEBUG_HTTP)
+                Log.d(TAG, "Retrying " + url);
         }
 
-        return getCached(url);
-    }
+        metrics = attempt.metrics;
+        T response = attempt.response;
+        if (response == null && !attempt.additionalFetch) {
+            if (DEBUG_HTTP)
+                Log.d(TAG, "All attempts have failed, attempting to fall back to cache");
 
-    @SuppressWarnings({
-            "rawtypes", "unchecked"
-    })
-    public <T> T getCached(String url, Class type) {
-        if (gson == null) {
-            gson = new Gson();
+            response = readCached(url, handler, metrics, cache == OFFLINE_FIRST, config);
+
+            if (response != null)
+                metrics.setOutcome(RequestMetrics.OUTCOME_STALE_FALLBACK);
         }
 
-        try {
-            return (T) gson.fromJson(getCached(url, new ArrayList<NameValuePair>()), type);
-        } catch (JsonSyntaxException e) {
-            if (DEBUG_HTTP)
-                Log.d(TAG, "Error while parsing json: " + e);
+        finished(metrics);
 
-            return null;
-        }
+        return response;
     }
 
-    @SuppressWarnings({
-            "rawtypes", "unchecked"
-    })
-    public <T> T getCached(String url, List<NameValuePair> nameValuePairs, Class type) {
-        if (gson == null) {
-            gson = new Gson();
+    /**
+     * One network attempt at a get. An attempt may run on another thread
+     * than the request when it is hedged, {@link #cancel()} disconnects it.
+     * Its connection is attached to {@code owner}, the queued request it was
+     * made for if any, so cancelling that request disconnects it as well.
+     */
+    private static class Attempt<T> {
+        final RequestMetrics metrics;
+        final RequestConfig config;
+        final RequestFuture<?> owner;
+        final CountDownLatch responded = new CountDownLatch(1);
+
+        volatile HttpURLConnection connection;
+        volatile boolean cancelled;
+
+        T response;
+        boolean additionalFetch;
+        boolean retryable;
+        // thrown by the handler of a hedged attempt, rethrown on the caller
+        RuntimeException error;
+
+        Attempt(RequestMetrics metrics, RequestConfig config, RequestFuture<?> owner) {
+            this.metrics = metrics;
+            this.config = config;
+            this.owner = owner;
         }
 
-        try {
-            return (T) gson.fromJson(getCached(url, nameValuePairs), type);
-        } catch (JsonSyntaxException e) {
-            if (DEBUG_HTTP)
-                Log.d(TAG, "Error while parsing json: " + e);
-
-            return null;
+        boolean isCancelled() {
+            return cancelled || (owner != null && owner.isCancelled());
         }
-    }
 
-    public Bitmap getBitmap(String url) {
-        return getBitmap(url, CACHE);
+        void cancel() {
+            cancelled = true;
+            HttpURLConnection urlConnection = connection;
+            if (urlConnection != null)
+                urlConnection.disconnect();
+        }
     }
 
-    public Bitmap getBitmap(String url, int cache) {
+    private <T> void attempt(Attempt<T> attempt, String url, int cache,
+            ResponseHandler<T> handler, boolean reuseConnection, long deadline) {
         HttpURLConnection urlConnection = null;
-        Bitmap response = null;
-
-        if (DEBUG_HTTP) {
-            Log.d(TAG, "url: " + url);
-        }
+        RequestMetrics metrics = attempt.metrics;
+        Future<?> watchdog = null;
+        int responseCode = -1;
+        T response = null;
 
         try {
-            urlConnection = (HttpURLConnection) new URL(url).openConnection();
+            urlConnection = openGetConnection(url, cache, attempt.config);
+            attempt.connection = urlConnection;
+            if (attempt.owner != null)
+                attempt.owner.attach(urlConnection);
+            if (attempt.cancelled)
+                throw new IOException("Attempt was cancelled");
+
+            watchdog = watchDeadline(urlConnection, deadline);
+
+            traceRequest(urlConnection, metrics);
+            urlConnection.connect();
+            metrics.connected(urlConnection);
+
+            responseCode = urlConnection.getResponseCode();
+            metrics.firstByte(responseCode);
+            attempt.responded.countDown();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // only reachable when no response cache is installed or the
+                // caller set their own validators with setHeaderField
+                if (DEBUG_HTTP)
+                    Log.d(TAG,
+                            "Server responded with 304 not modified, attempting to load from cache");
 
-            urlConnection.setConnectTimeout(connectTimeout);
-            urlConnection.setReadTimeout(readTimeout);
-            urlConnection.setRequestProperty("User-Agent", UAS);
-            urlConnection.setDoInput(true);
+                response = readCached(url, handler, metrics, false, attempt.config);
+                attempt.additionalFetch = true;
 
-            if (cookies != null)
-                urlConnection.setRequestProperty("Cookie", cookies);
+                if (response != null)
+                    metrics.setOutcome(RequestMetrics.OUTCOME_VALIDATED);
+            } else {
+                int outcome = ResponseSources.getOutcome(urlConnection);
+                response = handleResponse(urlConnection, handler, metrics);
 
-            addHeaders(urlConnection);
+                // a partial response is neither cached nor kept alive
+                if (response != null && metrics.getOutcome() != RequestMetrics.OUTCOME_PARTIAL) {
+                    metrics.setOutcome(outcome);
 
-            if (cache == NO_CACHE) {
-                urlConnection.addRequestProperty("Cache-Control", "no-cache");
-            } else if (cache == VALIDATE_CACHE) {
-                urlConnection.addRequestProperty("Cache-Control", "max-age=0");
+                    if (cache != NO_CACHE)
+                        cacheUpdated(url, urlConnection, attempt.config);
+                }
             }
 
-            if (DEBUG_HTTP)
-                Log.d(TAG, "request headers: " + urlConnection.getRequestProperties().toString());
-
-            response = BitmapFactory.decodeStream(urlConnection.getInputStream());
-
-            if (DEBUG_HTTP) {
-                Log.d(TAG, "response code: " + urlConnection.getResponseCode());
-            }
+            if (!attempt.additionalFetch)
+                traceResponse(urlConnection, responseCode, response, metrics);
         } catch (MalformedURLException e) {
             if (DEBUG_HTTP)
                 Log.w(TAG, "MalformedURLException occured while parsing url " + e);
         } catch (IOException e) {
-            if (DEBUG_HTTP) {
+            attempt.retryable = !attempt.isCancelled() && RetryPolicy.isRetryable(e, responseCode);
+
+            if (urlConnection != null)
+                readErrorBody(urlConnection, metrics);
+
+            if (DEBUG_HTTP)
                 Log.w(TAG,
                         "IOException occured while trying to open connection or getting input stream. "
                                 + e);
-            }
         } finally {
-            urlConnection.disconnect();
+            if (watchdog != null)
+                watchdog.cancel(false);
+
+            if (urlConnection != null) {
+                boolean reuse = response != null
+                        && metrics.getOutcome() != RequestMetrics.OUTCOME_PARTIAL
+                        && (reuseConnection || attempt.config.reuseConnections);
+                if (reuse && attempt.owner != null)
+                    attempt.owner.detach(urlConnection);
+                close(urlConnection, reuse);
+            }
+
+            attempt.response = response;
+            attempt.responded.countDown();
         }
+    }
 
-        return response;
+    /**
+     * Runs the attempt on another thread and starts a second one if no
+     * response has arrived after {@code delayMs}. Returns the first attempt
+     * to succeed, or the last one to fail.
+     */
+    private <T> Attempt<T> hedge(final Attempt<T> first, final String url, final int cache,
+            final ResponseHandler<T> handler, final boolean reuseConnection, final long deadline,
+            long delayMs) {
+        final LinkedBlockingQueue<Attempt<T>> done = new LinkedBlockingQueue<Attempt<T>>();
+        final ArrayList<Attempt<T>> attempts = new ArrayList<Attempt<T>>(2);
+
+        try {
+            start(first, url, cache, handler, reuseConnection, deadline, done);
+            attempts.add(first);
+
+            if (first.responded.await(delayMs, TimeUnit.MILLISECONDS)) {
+                done.take();
+                return first;
+            }
+
+            if (DEBUG_HTTP)
+                Log.d(TAG, "No response after " + delayMs + "ms, hedging " + url);
+
+            Attempt<T> second = new Attempt<T>(new RequestMetrics(first.metrics), first.config,
+                    first.owner);
+            second.metrics.setHedged();
+            start(second, url, cache, handler, reuseConnection, deadline, done);
+            attempts.add(second);
+
+            // prefer a response, then a handler error over a plain failure
+            Attempt<T> result = done.take();
+            if (result.response == null) {
+                Attempt<T> other = done.take();
+                if (other.response != null || result.error == null)
+                    result = other;
+            }
+
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return first;
+        } finally {
+            for (Attempt<T> attempt : attempts) {
+                if (attempt.responded.getCount() > 0 || attempt.response == null)
+                    attempt.cancel();
+            }
+        }
     }
 
-    public String post(String url) {
-        return post(url, "");
+    private <T> void start(final Attempt<T> attempt, final String url, final int cache,
+            final ResponseHandler<T> handler, final boolean reuseConnection, final long deadline,
+            final LinkedBlockingQueue<Attempt<T>> done) {
+        sHedgeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    attempt(attempt, url, cache, handler, reuseConnection, deadline);
+                } catch (RuntimeException e) {
+                    attempt.error = e;
+                } finally {
+                    done.add(attempt);
+                }
+            }
+        });
     }
 
-    public String post(String url, String params) {
-        HttpURLConnection urlConnection = null;
-        String response = null;
-        String urlParameters = params;
+    /**
+     * @return how long to wait for a response before hedging, or 0 to not
+     *         hedge.
+     */
+    private static long getHedgeDelay(String url, RequestConfig config) {
+        if (config.hedgePercentile <= 0)
+            return 0;
 
-        if (DEBUG_HTTP) {
-            Log.d(TAG, "url: " + url);
-            Log.d(TAG, "query string: " + params);
+        try {
+            LatencyHistogram firstByte = sMetrics.getHostMetrics(new URL(url).getHost())
+                    .getFirstByteLatency();
+            if (firstByte.getCount() < MIN_HEDGE_SAMPLES)
+                return 0;
+
+            return Math.max(1, (long) firstByte.getPercentileMillis(config.hedgePercentile));
+        } catch (MalformedURLException e) {
+            return 0;
         }
+    }
 
-        try {
-            urlConnection = (HttpURLConnection) new URL(url).openConnection();
+    /**
+     * Tightens the connection's timeouts to what is left until the deadline
+     * and disconnects it if it is still running when the deadline passes.
+     */
+    private static Future<?> watchDeadline(final HttpURLConnection urlConnection, long deadline)
+            throws IOException {
+        if (deadline == 0)
+            return null;
 
-            urlConnection.setDoOutput(true);
-            urlConnection.setConnectTimeout(connectTimeout);
-            urlConnection.setReadTimeout(readTimeout);
-            urlConnection.setRequestProperty("User-Agent", UAS);
+        long remaining = (deadline - System.nanoTime()) / 1000000;
+        if (remaining <= 0)
+            throw new SocketTimeoutException("Deadline passed before the request started");
+
+        urlConnection.setConnectTimeout((int) Math.min(urlConnection.getConnectTimeout(),
+                remaining));
+        urlConnection.setReadTimeout((int) Math.min(urlConnection.getReadTimeout(), remaining));
 
-            if (cookies != null)
-                urlConnection.setRequestProperty("Cookie", cookies);
+        return sDeadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (DEBUG_HTTP)
+                    Log.w(TAG, "Deadline passed, disconnecting " + urlConnection.getURL());
 
-            addHeaders(urlConnection);
+                urlConnection.disconnect();
+            }
+        }, remaining, TimeUnit.MILLISECONDS);
+    }
 
-            urlConnection.addRequestProperty("Cache-Control", "no-cache");
+    public String getCached(String url) {
+        return getCached(url, mStringHandler);
+    }
 
-            urlConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            urlConnection.setRequestProperty("Content-Length",
-                    Integer.toString(urlParameters.getBytes().length));
+    public String getCached(String url, List<NameValuePair> nameValuePairs) {
+        if (nameValuePairs != null && nameValuePairs.size() > 0)
+            url = url + "?" + encodeParameters(nameValuePairs);
+
+        if (DEBUG_HTTP)
+            Log.d(TAG, "Attempting to load directly from cache, return null if not cached");
+
+        return getCached(url);
+    }
 
+    @SuppressWarnings("rawtypes")
+    public <T> T getCached(String url, Class type) {
+        return this.<T> getCached(url, (Type) type);
+    }
+
+    public <T> T getCached(String url, Type type) {
+        return this.<T> getCached(url, new ArrayList<NameValuePair>(), type);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public <T> T getCached(String url, List<NameValuePair> nameValuePairs, Class type) {
+        return this.<T> getCached(url, nameValuePairs, (Type) type);
+    }
+
+    public <T> T getCached(String url, List<NameValuePair> nameValuePairs, Type type) {
+        if (nameValuePairs != null && nameValuePairs.size() > 0)
+            url = url + "?" + encodeParameters(nameValuePairs);
+
+        try {
+            return getCached(url, new JsonHandler<T>(type));
+        } catch (JsonParseException e) {
             if (DEBUG_HTTP)
-                Log.d(TAG, "request headers: " + urlConnection.getRequestProperties().toString());
+                Log.d(TAG, "Error while parsing json: " + e);
 
-            OutputStream output = null;
-            try {
-                output = urlConnection.getOutputStream();
-                output.write(urlParameters.getBytes("UTF-8"));
-            } catch (IOException e) {
-                Log.w(TAG, "IOException occured while trying to get output stream. " + e);
-            } finally {
-                if (output != null) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        Log.w(TAG, "IOException occured while trying to close output stream. " + e);
-                    }
-                }
-            }
+            return null;
+        }
+    }
 
-            response = readStream(urlConnection.getInputStream());
+    private <T> T getCached(String url, ResponseHandler<T> handler) {
+        RequestMetrics metrics = new RequestMetrics("GET", url);
+        T response = readCached(url, handler, metrics, false, mConfig);
 
-            if (DEBUG_HTTP) {
-                Log.d(TAG, "response code: " + urlConnection.getResponseCode());
-                Log.d(TAG, "response headers: " + urlConnection.getHeaderFields().toString());
-                Log.d(TAG, "response payload: " + response);
+        if (response != null)
+            metrics.setOutcome(RequestMetrics.OUTCOME_CACHE_HIT);
+
+        finished(metrics);
+
+        return response;
+    }
+
+    /**
+     * @param acceptStale when true an expired response is returned as well,
+     *            otherwise only fresh ones or those allowed by max-stale.
+     */
+    private <T> T readCached(String url, ResponseHandler<T> handler, RequestMetrics metrics,
+            boolean acceptStale, RequestConfig config) {
+        HttpURLConnection urlConnection = null;
+        T response = null;
+
+        if (DEBUG_HTTP) {
+            Log.d(TAG, "url: " + url);
+        }
+
+        try {
+            urlConnection = openConnection(url, sPlatformTransport, config);
+            urlConnection.addRequestProperty("Cache-Control", "only-if-cached");
+            if (acceptStale) {
+                urlConnection.addRequestProperty("Cache-Control", "max-stale=" + Integer.MAX_VALUE);
+            } else {
+                addFreshness(urlConnection, config);
             }
-        } catch (MalformedURLException e) {
+
+            response = handleResponse(urlConnection, handler, metrics);
+
+            // the cache marks expired responses it serves with a warning
+            String warning = urlConnection.getHeaderField("Warning");
+            metrics.setStale(warning != null && warning.startsWith(STALE_WARNING));
+
+            traceResponse(urlConnection, urlConnection.getResponseCode(), response, metrics);
+        } catch (FileNotFoundException e) {
             if (DEBUG_HTTP)
-                Log.w(TAG, "MalformedURLException occured while parsing url " + e);
-        } catch (IOException e) {
-            if (DEBUG_HTTP) {
-                response = readStream(urlConnection.getErrorStream());
-                Log.d(TAG, "error response: " + response);
+                Log.w(TAG, "The requested resource was not cached");
 
+            response = null;
+        } catch (IOException e) {
+            if (DEBUG_HTTP)
                 Log.w(TAG,
                         "IOException occured while trying to open connection or getting input stream. "
                                 + e);
-            }
         } finally {
-            urlConnection.disconnect();
+            if (urlConnection != null)
+                urlConnection.disconnect();
         }
 
         return response;
     }
 
-    public String post(String url, List<NameValuePair> nameValuePairs) {
-        return post(url, encodeParameters(nameValuePairs));
+    public byte[] getBytes(String url) {
+        return getBytes(url, CACHE);
     }
 
-    @SuppressWarnings({
-            "unchecked", "rawtypes"
-    })
-    public <T> T post(String url, Class type) {
-        if (gson == null) {
-            gson = new Gson();
-        }
-
-        try {
-            return (T) gson.fromJson(post(url, new String()), type);
-        } catch (JsonSyntaxException e) {
-            if (DEBUG_HTTP)
-                Log.d(TAG, "Error while parsing json: " + e);
+    public byte[] getBytes(final String url, final int cache) {
+        return coalesce("bytes", url, cache, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return get(url, cache, mBytesHandler);
+            }
+        });
+    }
 
-            return null;
-        }
+    public ByteBuffer getByteBuffer(String url, int cache) {
+        byte[] bytes = getBytes(url, cache);
+        return bytes == null ? null : ByteBuffer.wrap(bytes);
     }
 
-    @SuppressWarnings({
-            "unchecked", "rawtypes"
-    })
-    public <T> T post(String url, String params, Class type) {
-        if (gson == null) {
-            gson = new Gson();
+    /**
+     * Opens the body of the response as a stream without reading it, falling
+     * back to the cache if the request fails. The caller must close the
+     * stream, closing it releases the connection.
+     */
+    public InputStream getInputStream(String url, int cache) {
+        HttpURLConnection urlConnection = null;
+        RequestConfig config = mConfig;
+        RequestMetrics metrics = new RequestMetrics("GET", url);
+
+        if (DEBUG_HTTP) {
+            Log.d(TAG, "url: " + url);
         }
 
         try {
-            return (T) gson.fromJson(post(url, params), type);
-        } catch (JsonSyntaxException e) {
+            urlConnection = openGetConnection(url, cache, config);
+            traceRequest(urlConnection, metrics);
+            urlConnection.connect();
+            metrics.connected(urlConnection);
+            metrics.firstByte(urlConnection.getResponseCode());
+            metrics.setOutcome(ResponseSources.getOutcome(urlConnection));
+            InputStream in = urlConnection.getInputStream();
+
+            if (cache != NO_CACHE)
+                cacheUpdated(url, urlConnection, config);
+
+            return ConnectionInputStream.open(urlConnection, in, metrics,
+                    config.reuseConnections);
+        } catch (MalformedURLException e) {
             if (DEBUG_HTTP)
-                Log.d(TAG, "Error while parsing json: " + e);
+                Log.w(TAG, "MalformedURLException occured while parsing url " + e);
 
+            metrics.setOutcome(RequestMetrics.OUTCOME_FAILED);
+            finished(metrics);
             return null;
-        }
-    }
+        } catch (IOException e) {
+            if (DEBUG_HTTP)
+                Log.w(TAG,
+                        "IOException occured while trying to open connection or getting input stream. "
+                                + e);
 
-    @SuppressWarnings({
-            "unchecked", "rawtypes"
-    })
-    public <T> T post(String url, List<NameValuePair> nameValuePairs, Class type) {
-        if (gson == null) {
-            gson = new Gson();
+            if (urlConnection != null)
+                urlConnection.disconnect();
         }
 
+        if (DEBUG_HTTP)
+            Log.d(TAG, "All attempts have failed, attempting to fall back to cache");
+
+        urlConnection = null;
         try {
-            return (T) gson.fromJson(post(url, nameValuePairs), type);
-        } catch (JsonSyntaxException e) {
+            urlConnection = openConnection(url, sPlatformTransport, config);
+            urlConnection.addRequestProperty("Cache-Control", "only-if-cached");
+
+            InputStream in = urlConnection.getInputStream();
+            metrics.setOutcome(RequestMetrics.OUTCOME_STALE_FALLBACK);
+
+            return ConnectionInputStream.open(urlConnection, in, metrics, false);
+        } catch (IOException e) {
             if (DEBUG_HTTP)
-                Log.d(TAG, "Error while parsing json: " + e);
+                Log.w(TAG, "The requested resource was not cached");
 
+            if (urlConnection != null)
+                urlConnection.disconnect();
+
+            metrics.setOutcome(RequestMetrics.OUTCOME_FAILED);
+            finished(metrics);
             return null;
         }
     }
 
-    public String uploadImage(Context context, String url, String image, ProgressCallback callback) {
-        // Delimiters for the upload
-        // following:
-        // http://reecon.wordpress.com/2010/04/25/uploading-files-to-http-server-using-post-android-sdk/
-        final String lineEnd = "\r\n";
-        final String twoHyphens = "--";
-        final String boundary = "*****";
+    public Bitmap getBitmap(String url) {
+        return getBitmap(url, CACHE);
+    }
 
-        int bytesRead, bytesAvailable, bufferSize;
-        byte[] buffer;
-        int maxBufferSize = 1 * 1024 * 1024;
+    public Bitmap getBitmap(String url, int cache) {
+        return getBitmap(url, 0, 0, cache);
+    }
 
-        HttpURLConnection urlConnection = null;
-        String response = null;
+    public Bitmap getBitmap(String url, int width, int height) {
+        return getBitmap(url, width, height, CACHE);
+    }
 
-        DataOutputStream outputStream = null;
+    /**
+     * Downloads and decodes a bitmap subsampled to the smallest power of two
+     * that is still at least {@code width} x {@code height}, pass 0 for both
+     * to decode at full resolution. Decoded bitmaps are kept in an in memory
+     * LRU in front of the disk cache, with {@link #CACHE} a bitmap in memory
+     * is returned without touching the network or disk.
+     */
+    public Bitmap getBitmap(final String url, final int width, final int height,
+            final int cache) {
+        final String key = url + " " + width + "x" + height;
+
+        if (cache == CACHE) {
+            Bitmap bitmap = sBitmapMemoryCache.acquire(key);
+            if (bitmap != null) {
+                if (DEBUG_HTTP)
+                    Log.d(TAG, "Bitmap served from memory: " + key);
 
-        if (DEBUG_HTTP) {
-            Log.d(TAG, "url: " + url);
+                return bitmap;
+            }
         }
 
-        try {
-            FileInputStream inputStream = new FileInputStream(new File(image));
+        Bitmap bitmap = coalesce("bitmap " + width + "x" + height, url, cache,
+                new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() {
+                        Bitmap bitmap = get(url, cache, new BitmapHandler(width, height));
+                        if (bitmap != null)
+                            sBitmapMemoryCache.put(key, bitmap);
+
+                        return bitmap;
+                    }
+                });
 
-            urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        if (bitmap == null || sBitmapMemoryCache.acquire(key, bitmap))
+            return bitmap;
 
-            urlConnection.setDoInput(true);
-            urlConnection.setDoOutput(true);
-            urlConnection.setRequestProperty("User-Agent", UAS);
-            urlConnection.addRequestProperty("Cache-Control", "no-cache");
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setRequestProperty("Connection", "Keep-Alive");
+        // everyone the bitmap was shared with released it before this caller
+        // got to it, so it may be decoded into already. Decode one of our own.
+        bitmap = get(url, cache, new BitmapHandler(width, height));
+        if (bitmap != null)
+            sBitmapMemoryCache.putAndAcquire(key, bitmap);
+
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap returned by getBitmap back once it is no longer
+     * displayed. Once every caller it was handed to has released it and it
+     * has left the memory cache its memory is reused by later decodes. The
+     * bitmap must not be used after this call.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap != null)
+            sBitmapMemoryCache.release(bitmap);
+    }
 
-            String[] imagePath = image.toString().split("/");
-            String imageName = imagePath[imagePath.length - 1];
+    /**
+     * Keeps objects parsed by get(url, type) in memory, or stops keeping
+     * them if {@code cache} is null, the default. Only requests made with
+     * {@link #CACHE} use it.
+     */
+    public static void setObjectCache(ObjectCache cache) {
+        sObjectCache = cache;
+    }
 
-            urlConnection.setRequestProperty("Content-Type", "multipart/form-data;boundary="
-                    + boundary);
+    /**
+     * Sets the maximum number of bytes of decoded bitmaps kept in memory, by
+     * default an eighth of the maximum heap size.
+     */
+    public static void setBitmapMemoryCacheSize(int bytes) {
+        sBitmapMemoryCache.setMaxSize(bytes);
+    }
 
-            if (cookies != null)
-                urlConnection.setRequestProperty("Cookie", cookies);
+    /**
+     * Streams the response to {@code file} through a fixed size buffer,
+     * writing to {@code file.part} until the download is complete. If a
+     * previous download was interrupted it is resumed with a Range request,
+     * guarded by If-Range with the stored ETag (or Last-Modified) so a
+     * changed resource is downloaded again from the start.
+     * <p>
+     * A failed download keeps its partial file and validators. They are
+     * only discarded when the server sends the whole resource, or a range
+     * that does not match the bytes on disk.
+     *
+     * @return true if the whole resource is now in {@code file}.
+     */
+    public boolean download(String url, File file, ProgressCallback callback) {
+        HttpURLConnection urlConnection = null;
+        OutputStream output = null;
+        File partial = new File(file.getPath() + ".part");
+        RequestConfig config = mConfig;
+        RequestMetrics metrics = new RequestMetrics("GET", url);
+        boolean reusable = false;
 
-            addHeaders(urlConnection);
+        if (DEBUG_HTTP) {
+            Log.d(TAG, "url: " + url);
+        }
 
-            if (DEBUG_HTTP)
-                Log.d(TAG, urlConnection.getRequestProperties().toString());
+        try {
+            long existing = partial.isFile() ? partial.length() : 0;
+            Validators validators = sCacheWriter.getValidators(url);
+            String validator = validators.etag != null ? validators.etag
+                    : validators.lastModified;
+
+            urlConnection = openConnection(url, sPlatformTransport, config);
+            urlConnection.setUseCaches(false);
+            // offsets have to refer to the bytes on disk
+            urlConnection.setRequestProperty("Accept-Encoding", "identity");
+
+            if (existing > 0 && validator != null) {
+                urlConnection.setRequestProperty("Range", "bytes=" + existing + "-");
+                urlConnection.setRequestProperty("If-Range", validator);
+            } else {
+                existing = 0;
+            }
 
-            outputStream = new DataOutputStream(urlConnection.getOutputStream());
+            traceRequest(urlConnection, metrics);
 
-            outputStream.writeBytes(twoHyphens + boundary + lineEnd);
-            outputStream
-                    .writeBytes("Content-Disposition: form-data; name=\"file\";filename=\""
-                            + imageName + "\"" + lineEnd);
-            outputStream.writeBytes(lineEnd);
+            urlConnection.connect();
+            metrics.connected(urlConnection);
 
-            bytesAvailable = inputStream.available();
-            int max = bytesAvailable;
-            bufferSize = Math.min(bytesAvailable, maxBufferSize);
-            buffer = new byte[bufferSize];
+            int responseCode = urlConnection.getResponseCode();
+            metrics.firstByte(responseCode);
+            String contentRange = urlConnection.getHeaderField("Content-Range");
+            long total;
+            boolean append;
+
+            if (responseCode == HTTP_PARTIAL_CONTENT && parseRangeStart(contentRange) == existing) {
+                append = true;
+                total = parseRangeTotal(contentRange);
+                if (total < 0 && urlConnection.getContentLength() >= 0)
+                    total = existing + urlConnection.getContentLength();
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                append = false;
+                existing = 0;
+                total = urlConnection.getContentLength();
+            } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE
+                    && parseRangeTotal(contentRange) == existing) {
+                // everything had already been downloaded
+                metrics.setOutcome(RequestMetrics.OUTCOME_NETWORK);
+                reusable = true;
+                return rename(partial, file);
+            } else if (responseCode == HTTP_PARTIAL_CONTENT
+                    || responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                // the range does not fit what is on disk, start over next time
+                if (DEBUG_HTTP)
+                    Log.w(TAG, "Discarding partial download, Content-Range " + contentRange
+                            + " does not match " + existing + " bytes on disk");
 
-            // Read file
-            bytesRead = inputStream.read(buffer, 0, bufferSize);
-            int progress = bytesRead;
+                partial.delete();
+                sCacheWriter.putValidators(url, null, null);
+                return false;
+            } else {
+                // most likely transient, keep what was downloaded so far
+                if (DEBUG_HTTP)
+                    Log.w(TAG, "Unexpected response code for download " + responseCode);
 
-            while (bytesRead > 0) {
-                if (DEBUG_HTTP) {
-                    Log.d(TAG, "upload progress: " + (int) (((double) progress / max) * 100) + "/"
-                            + 100);
-                }
+                return false;
+            }
 
-                if (callback != null)
-                    callback.MakeProgress((int) (((double) progress / max) * 100));
+            String etag = urlConnection.getHeaderField("ETag");
+            String lastModified = urlConnection.getHeaderField("Last-Modified");
+            if (etag != null || lastModified != null) {
+                sCacheWriter.putValidators(url, etag, lastModified);
+                // the partial file is useless without its validator
+                sCacheWriter.flush();
+            }
 
-                outputStream.write(buffer, 0, bufferSize);
-                bytesAvailable = inputStream.available();
-                bufferSize = Math.min(bytesAvailable, maxBufferSize);
-                bytesRead = inputStream.read(buffer, 0, bufferSize);
-                progress += bytesRead;
+            output = new FileOutputStream(partial, append);
+            CountingInputStream in = new CountingInputStream(urlConnection.getInputStream());
+            long start = System.nanoTime();
+            try {
+                copy(in, output, existing, total, callback);
+            } finally {
+                metrics.bodyRead(System.nanoTime() - start, in.getCount());
             }
+            output.close();
+            output = null;
 
-            outputStream.writeBytes(lineEnd);
-            outputStream.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
+            if (total >= 0 && existing + in.getCount() != total)
+                throw new EOFException("Download ended after " + (existing + in.getCount())
+                        + " of " + total + " bytes");
+            metrics.setOutcome(RequestMetrics.OUTCOME_NETWORK);
+            reusable = true;
 
-            response = readStream(urlConnection.getInputStream());
-        } catch (FileNotFoundException e) {
             if (DEBUG_HTTP)
-                Log.w(TAG, "FileNotFoundException occured while fetching the image " + e);
+                Log.d(TAG, "download complete: " + file);
+
+            return rename(partial, file);
         } catch (MalformedURLException e) {
             if (DEBUG_HTTP)
                 Log.w(TAG, "MalformedURLException occured while parsing url " + e);
         } catch (IOException e) {
-            if (DEBUG_HTTP) {
-                response = readStream(urlConnection.getErrorStream());
-                Log.d(TAG, "error response: " + response);
+            if (DEBUG_HTTP)
+                Log.w(TAG, "IOException occured while downloading, " + partial.length()
+                        + " bytes will be resumed on the next attempt " + e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException occured while trying to close output stream. " + e);
+                }
+            }
 
-                Log.w(TAG,
-                        "IOException occured while trying to open connection or getting input stream. "
-                                + e);
+            if (urlConnection != null)
+                close(urlConnection, reusable && config.reuseConnections);
+
+            finished(metrics);
+        }
+
+        return false;
+    }
+
+    private static void copy(InputStream in, OutputStream out, long written, long total,
+            ProgressCallback callback) throws IOException {
+        byte[] buffer = BufferPool.getDefault().getBuf(8 * 1024);
+        int lastProgress = -1;
+
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+
+                if (callback != null && total > 0) {
+                    int progress = (int) ((written * 100) / total);
+                    if (progress != lastProgress) {
+                        callback.MakeProgress(progress);
+                        lastProgress = progress;
+                    }
+                }
             }
         } finally {
-            urlConnection.disconnect();
+            BufferPool.getDefault().returnBuf(buffer);
+            in.close();
         }
+    }
 
-        if (DEBUG_HTTP)
-            Log.d(TAG, "ImageUpload response: " + response);
+    private static boolean rename(File from, File to) {
+        if (to.exists() && !to.delete())
+            return false;
 
-        return response;
+        return from.renameTo(to);
     }
 
-    /* Public helper methods */
-    public static Gson getGson() {
-        if (gson == null)
-            gson = new Gson();
+    /**
+     * @return the first byte of a {@code Content-Range: bytes first-last/total}
+     *         header or -1.
+     */
+    private static long parseRangeStart(String contentRange) {
+        if (contentRange == null)
+            return -1;
+
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-');
+        if (space == -1 || dash < space)
+            return -1;
 
-        return gson;
+        try {
+            return Long.parseLong(contentRange.substring(space + 1, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    public static String encodeParameters(List<NameValuePair> nameValuePairs) {
-        String parameters = "";
+    /**
+     * @return the total length of a {@code Content-Range} header or -1 if it
+     *         is missing or unknown.
+     */
+    private static long parseRangeTotal(String contentRange) {
+        if (contentRange == null)
+            return -1;
 
-        for (NameValuePair pair : nameValuePairs) {
-            try {
-                parameters += pair.getName() + "=" + URLEncoder.encode(pair.getValue(), "UTF-8")
-                        + "&";
-            } catch (UnsupportedEncodingException e) {
-                if (DEBUG_HTTP)
-                    Log.w(TAG, "UnsupportedEncodingException while url encoding parameters " + e);
-            }
-        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash == -1)
+            return -1;
 
-        return parameters.substring(0, parameters.length() - 1);
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    /* Private helper methods */
-    private void addHeaders(HttpURLConnection urlConnection) {
-        if (!additionalHeaderFields.isEmpty()) {
-            for (String key : additionalHeaderFields.keySet()) {
-                urlConnection.setRequestProperty(key, additionalHeaderFields.get(key));
-            }
-        }
+    public String post(String url) {
+        return post(url, "");
     }
 
-    private String readStream(InputStream in) {
-        InputStreamReader is = null;
-        BufferedReader br = null;
-        StringBuilder sb = null;
+    public String post(String url, String params) {
+        return post(url, new FormEncoder(params.length()).addEncoded(params), mStringHandler);
+    }
 
-        if (in != null) {
-            try {
-                is = new InputStreamReader(in);
-                br = new BufferedReader(is);
-                sb = new StringBuilder();
+    public String post(String url, List<NameValuePair> nameValuePairs) {
+        return post(url, new FormEncoder(nameValuePairs));
+    }
 
-                String read = br.readLine();
+    public String post(String url, FormEncoder form) {
+        return post(url, form, mStringHandler);
+    }
 
-                while (read != null) {
-                    sb.append(read);
-                    read = br.readLine();
-                }
-            } catch (IOException e) {
-                if (DEBUG_HTTP)
-                    Log.w(TAG, "IOException occured while reading response from server " + e);
-            } catch (NullPointerException e) {
-                if (DEBUG_HTTP)
-                    Log.w(TAG, "A NullPointerException occured while reading response from server "
-                            + e);
-            }
+    @SuppressWarnings("rawtypes")
+    public <T> T post(String url, Class type) {
+        return this.<T> post(url, new String(), (Type) type);
+    }
 
-            try {
-                in.close();
-                is.close();
-                br.close();
-            } catch (IOException e) {
-                if (DEBUG_HTTP)
-                    Log.w(TAG, "IOException occured while closing streams " + e);
-            } catch (NullPointerException e) {
-                if (DEBUG_HTTP)
-                    Log.w(TAG, "A NullPointerException occured while closing streams " + e);
-            }
+    public <T> T post(String url, Type type) {
+        return this.<T> post(url, new String(), type);
+    }
 
-            if (sb != null)
-                return sb.toString();
+    @SuppressWarnings("rawtypes")
+    public <T> T post(String url, String params, Class type) {
+        return this.<T> post(url, params, (Type) type);
+    }
 
-            return null;
-        }
+    public <T> T post(String url, String params, Type type) {
+        return this.<T> post(url, new FormEncoder(params.length()).addEncoded(params), type);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public <T> T post(String url, List<NameValuePair> nameValuePairs, Class type) {
+        return this.<T> post(url, new FormEncoder(nameValuePairs), (Type) type);
+    }
+
+    public <T> T post(String url, List<NameValuePair> nameValuePairs, Type type) {
+        return this.<T> post(url, new FormEncoder(nameValuePairs), type);
+    }
+
+    public <T> T post(String url, FormEncoder form, Type type) {
+        try {
+            return post(url, form, new JsonHandler<T>(type));
+        } catch (JsonParseException e) {
+            if (DEBUG_HTTP)
+                Log.d(TAG, "Error while parsing json: " + e);
+
+            return null;
+        }
+    }
+
+    private <T> T post(String url, FormEncoder form, ResponseHandler<T> handler) {
+        HttpURLConnection urlConnection = null;
+        T response = null;
+        RequestMetrics metrics = new RequestMetrics("POST", url);
+        RequestConfig config = mConfig;
+        long deadlineMs = config.deadlineMs;
+        Future<?> watchdog = null;
+
+        if (DEBUG_HTTP) {
+            Log.d(TAG, "url: " + url);
+        }
+
+        try {
+            urlConnection = openConnection(url, config);
+            if (deadlineMs > 0)
+                watchdog = watchDeadline(urlConnection, System.nanoTime() + deadlineMs * 1000000);
+
+            urlConnection.setDoOutput(true);
+            urlConnection.addRequestProperty("Cache-Control", "no-cache");
+
+            // the encoder's buffer is written as is unless it is compressed
+            byte[] body = form.getBuffer();
+            int length = form.size();
+            int sent = length;
+            int threshold = config.requestCompressionThreshold;
+            if (threshold >= 0 && length >= threshold) {
+                body = ContentEncodings.gzip(body, 0, length);
+                sent = body.length;
+                urlConnection.setRequestProperty("Content-Encoding", "gzip");
+            }
+
+            urlConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            urlConnection.setRequestProperty("Content-Length", Integer.toString(sent));
+
+            traceRequest(urlConnection, form, metrics);
+
+            OutputStream output = null;
+            try {
+                output = urlConnection.getOutputStream();
+                metrics.connected(urlConnection);
+
+                output.write(body, 0, sent);
+                metrics.sent(sent, length);
+            } catch (IOException e) {
+                Log.w(TAG, "IOException occured while trying to get output stream. " + e);
+            } finally {
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "IOException occured while trying to close output stream. " + e);
+                    }
+                }
+            }
+
+            int responseCode = urlConnection.getResponseCode();
+            metrics.firstByte(responseCode);
+            response = handleResponse(urlConnection, handler, metrics);
+
+            if (response != null)
+                metrics.setOutcome(RequestMetrics.OUTCOME_NETWORK);
+
+            traceResponse(urlConnection, responseCode, response, metrics);
+        } catch (MalformedURLException e) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "MalformedURLException occured while parsing url " + e);
+        } catch (IOException e) {
+            if (urlConnection != null)
+                readErrorBody(urlConnection, metrics);
+
+            if (DEBUG_HTTP)
+                Log.w(TAG,
+                        "IOException occured while trying to open connection or getting input stream. "
+                                + e);
+        } finally {
+            if (watchdog != null)
+                watchdog.cancel(false);
+
+            if (urlConnection != null)
+                close(urlConnection, response != null && config.reuseConnections);
+        }
+
+        finished(metrics);
+
+        return response;
+    }
+
+    public String uploadImage(Context context, String url, String image, ProgressCallback callback) {
+        File file = new File(image);
+        if (!file.isFile()) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "FileNotFoundException occured while fetching the image " + image);
+
+            return null;
+        }
+
+        String contentType = URLConnection.guessContentTypeFromName(file.getName());
+        MultipartBody body = new MultipartBody().addFile("file", file,
+                contentType == null ? "application/octet-stream" : contentType);
+
+        String response = upload(url, body, callback);
+
+        if (DEBUG_HTTP)
+            Log.d(TAG, "ImageUpload response: " + response);
+
+        return response;
+    }
+
+    /**
+     * Streams a multipart body to the server with a fixed Content-Length.
+     * Progress is reported as the body is written to the connection rather
+     * than to an in memory buffer.
+     */
+    public String upload(String url, MultipartBody body, ProgressCallback callback) {
+        HttpURLConnection urlConnection = null;
+        String response = null;
+        RequestConfig config = mConfig;
+        RequestMetrics metrics = new RequestMetrics("POST", url);
+
+        if (DEBUG_HTTP) {
+            Log.d(TAG, "url: " + url);
+        }
+
+        try {
+            long contentLength = body.getContentLength();
+
+            urlConnection = openConnection(url, sPlatformTransport, config);
+
+            urlConnection.setDoInput(true);
+            urlConnection.setDoOutput(true);
+            urlConnection.addRequestProperty("Cache-Control", "no-cache");
+            urlConnection.setRequestMethod("POST");
+            urlConnection.setRequestProperty("Content-Type", body.getContentType());
+
+            if (contentLength <= Integer.MAX_VALUE) {
+                urlConnection.setFixedLengthStreamingMode((int) contentLength);
+            } else {
+                urlConnection.setChunkedStreamingMode(0);
+            }
+
+            traceRequest(urlConnection, metrics);
+
+            OutputStream output = urlConnection.getOutputStream();
+            metrics.connected(urlConnection);
+            try {
+                body.writeTo(output, callback);
+            } finally {
+                output.close();
+            }
+            metrics.sent(contentLength);
+
+            int responseCode = urlConnection.getResponseCode();
+            metrics.firstByte(responseCode);
+            response = handleResponse(urlConnection, mStringHandler, metrics);
+
+            if (response != null)
+                metrics.setOutcome(RequestMetrics.OUTCOME_NETWORK);
+
+            traceResponse(urlConnection, responseCode, response, metrics);
+        } catch (FileNotFoundException e) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "FileNotFoundException occured while uploading " + e);
+        } catch (MalformedURLException e) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "MalformedURLException occured while parsing url " + e);
+        } catch (IOException e) {
+            if (urlConnection != null)
+                readErrorBody(urlConnection, metrics);
+
+            if (DEBUG_HTTP)
+                Log.w(TAG,
+                        "IOException occured while trying to open connection or getting input stream. "
+                                + e);
+        } finally {
+            if (urlConnection != null)
+                close(urlConnection, response != null && config.reuseConnections);
+        }
+
+        finished(metrics);
+
+        return response;
+    }
+
+    public String uploadResumable(String url, File file, ProgressCallback callback) {
+        return uploadResumable(url, file, DEFAULT_UPLOAD_CHUNK_SIZE, callback);
+    }
+
+    /**
+     * Uploads a file in ranged chunks with PUT requests, each carrying a
+     * {@code Content-Range: bytes start-end/total} header. The server answers
+     * an accepted chunk with 308 and a {@code Range: bytes=0-last} header
+     * confirming what it holds, and the final chunk with 200 or 201.
+     * <p>
+     * The confirmed offset is checkpointed after every chunk. If the upload
+     * fails it returns null, calling this again with the same url and
+     * unmodified file first asks the server for its offset with an empty
+     * {@code Content-Range: bytes *}{@code /total} request and continues from
+     * the last byte it acknowledged, even after a process restart.
+     *
+     * @return the body of the final response or null if the upload did not
+     *         complete.
+     */
+    public String uploadResumable(String url, File file, int chunkSize,
+            ProgressCallback callback) {
+        if (DEBUG_HTTP) {
+            Log.d(TAG, "url: " + url);
+        }
+
+        if (!file.isFile()) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "FileNotFoundException occured while fetching the file " + file);
+
+            return null;
+        }
+
+        RequestConfig config = mConfig;
+        String key = UploadCheckpoints.key(url, file);
+        long total = file.length();
+        long offset = sUploadCheckpoints.get(key);
+        boolean queryOffset = offset > 0;
+        int failures = 0;
+
+        if (offset < 0)
+            offset = 0;
+
+        while (failures < MAX_CHUNK_ATTEMPTS) {
+            long length = queryOffset ? 0 : Math.min(chunkSize, total - offset);
+            UploadStatus status = putChunk(url, file, total, offset, length, callback, config);
+
+            if (status == null) {
+                failures++;
+                queryOffset = true;
+                continue;
+            }
+
+            if (status.complete) {
+                sUploadCheckpoints.remove(key);
+
+                if (callback != null)
+                    callback.MakeProgress(100);
+
+                if (DEBUG_HTTP)
+                    Log.d(TAG, "Resumable upload response: " + status.response);
+
+                return status.response;
+            }
+
+            if (status.confirmed > offset) {
+                failures = 0;
+            } else if (!queryOffset) {
+                // the server did not take the chunk
+                failures++;
+            }
+
+            offset = status.confirmed;
+            queryOffset = false;
+            sUploadCheckpoints.put(key, offset);
+
+            if (DEBUG_HTTP)
+                Log.d(TAG, "upload confirmed up to " + offset + "/" + total);
+        }
+
+        if (DEBUG_HTTP)
+            Log.w(TAG, "Resumable upload failed at " + offset + "/" + total
+                    + ", it will resume from there on the next attempt");
 
         return null;
     }
 
+    private static class UploadStatus {
+        boolean complete;
+        long confirmed;
+        String response;
+    }
+
+    private UploadStatus putChunk(String url, File file, long total, long offset, long length,
+            ProgressCallback callback, RequestConfig config) {
+        HttpURLConnection urlConnection = null;
+        RandomAccessFile input = null;
+        RequestMetrics metrics = new RequestMetrics("PUT", url);
+        boolean reusable = false;
+
+        try {
+            urlConnection = openConnection(url, sPlatformTransport, config);
+
+            urlConnection.setDoOutput(true);
+            urlConnection.setInstanceFollowRedirects(false);
+            urlConnection.setRequestMethod("PUT");
+            urlConnection.addRequestProperty("Cache-Control", "no-cache");
+            urlConnection.setRequestProperty("Content-Type", "application/octet-stream");
+            urlConnection.setRequestProperty("Content-Range", length == 0
+                    ? "bytes */" + total
+                    : "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+            urlConnection.setFixedLengthStreamingMode((int) length);
+
+            traceRequest(urlConnection, metrics);
+
+            OutputStream output = urlConnection.getOutputStream();
+            metrics.connected(urlConnection);
+            try {
+                if (length > 0) {
+                    input = new RandomAccessFile(file, "r");
+                    input.seek(offset);
+                    writeChunk(input, output, offset, length, total, callback);
+                }
+            } finally {
+                output.close();
+            }
+            metrics.sent(length);
+
+            UploadStatus status = new UploadStatus();
+            int responseCode = urlConnection.getResponseCode();
+            metrics.firstByte(responseCode);
+
+            if (responseCode == HTTP_RESUME_INCOMPLETE) {
+                status.confirmed = parseConfirmedOffset(urlConnection.getHeaderField("Range"));
+            } else if (responseCode == HttpURLConnection.HTTP_OK
+                    || responseCode == HttpURLConnection.HTTP_CREATED) {
+                status.complete = true;
+                status.response = handleResponse(urlConnection, mStringHandler, metrics);
+            } else {
+                if (DEBUG_HTTP)
+                    Log.w(TAG, "Unexpected response code for upload chunk " + responseCode);
+
+                return null;
+            }
+
+            metrics.setOutcome(RequestMetrics.OUTCOME_NETWORK);
+            reusable = true;
+            return status;
+        } catch (IOException e) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "IOException occured while uploading chunk at " + offset + " " + e);
+
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException occured while trying to close file. " + e);
+                }
+            }
+
+            if (urlConnection != null)
+                close(urlConnection, reusable && config.reuseConnections);
+
+            finished(metrics);
+        }
+    }
+
+    private static void writeChunk(RandomAccessFile input, OutputStream output, long offset,
+            long length, long total, ProgressCallback callback) throws IOException {
+        byte[] buffer = BufferPool.getDefault().getBuf(8 * 1024);
+        try {
+            long remaining = length;
+            int lastProgress = -1;
+
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1)
+                    throw new EOFException("File changed during upload");
+
+                output.write(buffer, 0, read);
+                remaining -= read;
+
+                int progress = (int) (((offset + length - remaining) * 100) / total);
+                if (callback != null && progress != lastProgress) {
+                    callback.MakeProgress(progress);
+                    lastProgress = progress;
+                }
+            }
+        } finally {
+            BufferPool.getDefault().returnBuf(buffer);
+        }
+    }
+
+    /**
+     * @return one past the last byte in a {@code Range: bytes=0-last} header,
+     *         or 0 if the server holds nothing yet.
+     */
+    private static long parseConfirmedOffset(String range) {
+        if (range == null)
+            return 0;
+
+        int dash = range.lastIndexOf('-');
+        if (dash == -1)
+            return 0;
+
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /* Async methods, callbacks are delivered on the main thread */
+    public Future<String> getAsync(String url, ResponseCallback<String> callback) {
+        return getAsync(url, CACHE, PRIORITY_NORMAL, callback);
+    }
+
+    public Future<String> getAsync(final String url, final int cache, int priority,
+            ResponseCallback<String> callback) {
+        return enqueue(url, priority, new Callable<String>() {
+            @Override
+            public String call() {
+                return get(url, cache);
+            }
+        }, callback);
+    }
+
+    public <T> Future<T> getAsync(final String url, final Type type, final int cache,
+            int priority, ResponseCallback<T> callback) {
+        return enqueue(url, priority, new Callable<T>() {
+            @Override
+            public T call() {
+                return HttpHelper.this.<T> get(url, type, cache);
+            }
+        }, callback);
+    }
+
+    public Future<Bitmap> getBitmapAsync(final String url, final int cache, int priority,
+            ResponseCallback<Bitmap> callback) {
+        return enqueue(url, priority, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return getBitmap(url, cache);
+            }
+        }, callback);
+    }
+
+    public Future<String> postAsync(final String url, final String params,
+            ResponseCallback<String> callback) {
+        return enqueue(url, PRIORITY_NORMAL, new Callable<String>() {
+            @Override
+            public String call() {
+                return post(url, params);
+            }
+        }, callback);
+    }
+
+    public <T> Future<T> postAsync(final String url, final String params, final Type type,
+            int priority, ResponseCallback<T> callback) {
+        return enqueue(url, priority, new Callable<T>() {
+            @Override
+            public T call() {
+                return HttpHelper.this.<T> post(url, params, type);
+            }
+        }, callback);
+    }
+
+    public Future<String> uploadImageAsync(final Context context, final String url,
+            final String image, final ProgressCallback progressCallback,
+            ResponseCallback<String> callback) {
+        return enqueue(url, PRIORITY_NORMAL, new Callable<String>() {
+            @Override
+            public String call() {
+                return uploadImage(context, url, image, progressCallback);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs an arbitrary request on this instance's dispatcher. {@code url} is
+     * only used to apply the per host limit. Cancelling the returned future
+     * disconnects any connection the request has open.
+     */
+    public <T> Future<T> enqueue(String url, int priority, Callable<T> request,
+            ResponseCallback<T> callback) {
+        return enqueue(url, priority, request, callback, null);
+    }
+
+    /**
+     * @param finished run once the request completes, is cancelled or is
+     *            rejected by a dispatcher that has been shut down.
+     */
+    <T> Future<T> enqueue(String url, int priority, Callable<T> request,
+            ResponseCallback<T> callback, Runnable finished) {
+        RequestDispatcher dispatcher = mConfig.dispatcher;
+        if (dispatcher == null)
+            dispatcher = RequestDispatcher.getDefault();
+
+        return dispatcher.enqueue(url, priority, request, callback, finished);
+    }
+
+    /**
+     * Downloads {@code urls} into the cache in the background at low
+     * priority, at most two at a time, so the next get(url, CACHE) or
+     * getCached(url) is answered from disk. Responses the cache already
+     * holds fresh are not downloaded again. Only responses the server allows
+     * to be cached are kept, and getCached() only returns them while they
+     * are fresh.
+     */
+    public void prefetch(Collection<String> urls) {
+        mPrefetcher.add(urls, CACHE);
+    }
+
+    /**
+     * Prefetches {@code urls} now and then revalidates them every
+     * {@code intervalMs} until the returned future is cancelled.
+     */
+    public Future<?> schedulePrefetch(Collection<String> urls, long intervalMs) {
+        return mPrefetcher.schedule(urls, intervalMs);
+    }
+
+    /** Drops prefetches that have not started yet. */
+    public void cancelPrefetches() {
+        mPrefetcher.cancel();
+    }
+
+    /* Public helper methods */
+    public static Gson getGson() {
+        return getJsonAdapters().gson;
+    }
+
+    /**
+     * Replaces the Gson every json response is parsed with, for example one
+     * with custom TypeAdapters registered. Types passed to
+     * {@link #warmUpAdapters(Type...)} are warmed up again for it.
+     */
+    public static void setGson(Gson gson) {
+        synchronized (HttpHelper.class) {
+            sJsonAdapters = new JsonAdapters(gson);
+        }
+
+        // objects parsed by the old Gson may differ
+        ObjectCache objects = sObjectCache;
+        if (objects != null)
+            objects.clear();
+
+        warmUp(sWarmTypes);
+    }
+
+    /** @see #setGson(Gson) */
+    public static void setGson(GsonBuilder builder) {
+        setGson(builder.create());
+    }
+
+    /**
+     * Builds the type adapters for {@code types} on a background thread, so
+     * the first response of each type is not held up by Gson reflecting
+     * over it. Best called once at startup with the app's model types.
+     */
+    public static void warmUpAdapters(Type... types) {
+        List<Type> list = Arrays.asList(types);
+        sWarmTypes.addAllAbsent(list);
+        warmUp(list);
+    }
+
+    private static void warmUp(final List<Type> types) {
+        if (types.isEmpty())
+            return;
+
+        new RequestDispatcher.DispatcherThreadFactory().newThread(new Runnable() {
+            @Override
+            public void run() {
+                JsonAdapters adapters = getJsonAdapters();
+                for (Type type : types) {
+                    try {
+                        adapters.get(type);
+                    } catch (RuntimeException e) {
+                        if (DEBUG_HTTP)
+                            Log.w(TAG, "Could not build a type adapter for " + type + " " + e);
+                    }
+                }
+            }
+        }).start();
+    }
+
+    private static JsonAdapters getJsonAdapters() {
+        JsonAdapters result = sJsonAdapters;
+        if (result == null) {
+            synchronized (HttpHelper.class) {
+                result = sJsonAdapters;
+                if (result == null)
+                    sJsonAdapters = result = new JsonAdapters(new Gson());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @see FormEncoder
+     */
+    public static String encodeParameters(List<NameValuePair> nameValuePairs) {
+        return new FormEncoder(nameValuePairs).toString();
+    }
+
+    /* Private helper methods */
+    private <T> T coalesce(String kind, String url, int cache, Callable<T> request) {
+        RequestConfig config = mConfig;
+        if (!config.coalesceRequests) {
+            try {
+                return request.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        StringBuilder key = new StringBuilder(url.length() + config.key.length() + 16);
+        key.append(kind).append(' ').append(cache).append(' ').append(url).append(config.key);
+
+        return sInFlightRequests.execute(key.toString(), request);
+    }
+
+    private HttpURLConnection openConnection(String url, RequestConfig config)
+            throws IOException {
+        Transport transport = config.transport;
+        return openConnection(url, transport != null ? transport : sPlatformTransport, config);
+    }
+
+    private HttpURLConnection openConnection(String url, Transport transport,
+            RequestConfig config) throws IOException {
+        HttpURLConnection urlConnection = transport.open(new URL(url));
+        RequestFuture.attachCurrent(urlConnection);
+
+        urlConnection.setConnectTimeout(config.connectTimeout);
+        urlConnection.setReadTimeout(config.readTimeout);
+        urlConnection.setRequestProperty("User-Agent", UAS);
+
+        if (config.cookies != null)
+            urlConnection.setRequestProperty("Cookie", config.cookies);
+
+        if (config.compressResponses)
+            urlConnection.setRequestProperty("Accept-Encoding", ContentEncodings.ACCEPT_ENCODING);
+
+        for (Map.Entry<String, String> header : config.headers.entrySet())
+            urlConnection.setRequestProperty(header.getKey(), header.getValue());
+
+        return urlConnection;
+    }
+
+    private HttpURLConnection openGetConnection(String url, int cache, RequestConfig config)
+            throws IOException {
+        // only the platform's connections go through the response cache
+        HttpURLConnection urlConnection = cache == NO_CACHE ? openConnection(url, config)
+                : openConnection(url, sPlatformTransport, config);
+
+        if (cache == NO_CACHE) {
+            urlConnection.addRequestProperty("Cache-Control", "no-cache");
+        } else if (cache == VALIDATE_CACHE) {
+            // let the response cache make the request conditional with the
+            // validators of the entry it holds, a 304 is then answered from
+            // that entry on this same connection and the entry is updated
+            // in place. Adding If-None-Match ourselves would make the cache
+            // step aside and hand us an empty 304.
+            urlConnection.addRequestProperty("Cache-Control", "max-age=0");
+        } else {
+            addFreshness(urlConnection, config);
+        }
+
+        if (cache == OFFLINE_FIRST) {
+            urlConnection.setConnectTimeout(Math.min(urlConnection.getConnectTimeout(),
+                    OFFLINE_FIRST_TIMEOUT));
+            urlConnection.setReadTimeout(Math.min(urlConnection.getReadTimeout(),
+                    OFFLINE_FIRST_TIMEOUT));
+        }
+
+        return urlConnection;
+    }
+
+    private static void addFreshness(HttpURLConnection urlConnection, RequestConfig config) {
+        if (config.maxStale >= 0)
+            urlConnection.addRequestProperty("Cache-Control", "max-stale=" + config.maxStale);
+        if (config.minFresh >= 0)
+            urlConnection.addRequestProperty("Cache-Control", "min-fresh=" + config.minFresh);
+    }
+
+    /**
+     * Revalidates the cached response for {@code url} at low priority, the
+     * cache is updated whether the server answers 200 or 304.
+     */
+    private void refresh(final String url) {
+        enqueue(url, PRIORITY_LOW, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fetchIntoCache(url, VALIDATE_CACHE);
+            }
+        }, null);
+    }
+
+    /**
+     * Makes the request and discards the body, leaving the response in the
+     * cache.
+     */
+    boolean fetchIntoCache(final String url, final int cache) {
+        Boolean fetched = coalesce("fetch", url, cache, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return get(url, cache, sDrainHandler, true);
+            }
+        });
+
+        return fetched != null && fetched;
+    }
+
+    private boolean isOnline() {
+        // without ACCESS_NETWORK_STATE rely on the short deadline
+        if (mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                != PackageManager.PERMISSION_GRANTED)
+            return true;
+
+        ConnectivityManager connectivity = (ConnectivityManager) mContext
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity == null)
+            return true;
+
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
+    /**
+     * The response cache keeps the validators of what it stores and makes
+     * revalidations conditional itself, only downloads keep theirs in the
+     * validator store.
+     */
+    private void cacheUpdated(String url, HttpURLConnection urlConnection,
+            RequestConfig config) {
+        ObjectCache objects = sObjectCache;
+        if (objects != null)
+            objects.invalidate(url, urlConnection.getHeaderField("ETag"),
+                    urlConnection.getHeaderField("Last-Modified"));
+
+        if (config.writeBehind) {
+            sCacheWriter.cacheUpdated();
+        } else {
+            flush();
+        }
+    }
+
+    private static <T> T handleResponse(HttpURLConnection urlConnection,
+            ResponseHandler<T> handler, RequestMetrics metrics) throws IOException {
+        long decodeNanos = metrics.getDecodeNanos();
+        long start = System.nanoTime();
+        CountingInputStream transferred = new CountingInputStream(urlConnection.getInputStream());
+        CountingInputStream in = null;
+        try {
+            in = new CountingInputStream(ContentEncodings.decode(urlConnection, transferred));
+            return handler.handleResponse(urlConnection, in, metrics);
+        } finally {
+            // decoding happens after the body has been read
+            decodeNanos = metrics.getDecodeNanos() - decodeNanos;
+            metrics.bodyRead(System.nanoTime() - start - decodeNanos, transferred.getCount(),
+                    in == null ? 0 : in.getCount());
+        }
+    }
+
+    private static void close(HttpURLConnection urlConnection, boolean reuse) {
+        if (reuse) {
+            RequestFuture.detachCurrent(urlConnection);
+            release(urlConnection);
+        } else {
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Returns the connection to the keep-alive pool. That only happens once
+     * its body has been read to the end and closed, disconnect() always
+     * closes the socket.
+     */
+    private static void release(HttpURLConnection urlConnection) {
+        try {
+            InputStream in = urlConnection.getInputStream();
+            byte[] buffer = BufferPool.getDefault().getBuf(4096);
+            try {
+                int drained = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    drained += read;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        // cheaper to open a new connection than to read on
+                        urlConnection.disconnect();
+                        return;
+                    }
+                }
+            } finally {
+                BufferPool.getDefault().returnBuf(buffer);
+            }
+
+            in.close();
+        } catch (IOException e) {
+            urlConnection.disconnect();
+        }
+    }
+
+    private static void finished(RequestMetrics metrics) {
+        metrics.finish();
+        sMetrics.onRequestFinished(metrics);
+
+        RequestListener listener = sRequestListener;
+        if (listener != null)
+            listener.onRequestFinished(metrics);
+
+        Tracer tracer = getTracer(metrics);
+        if (tracer != null)
+            tracer.trace(metrics, Tracer.METRICS, Traces.payload(metrics));
+    }
+
+    /**
+     * @return the tracer if the request is traced, otherwise null.
+     */
+    private static Tracer getTracer(RequestMetrics metrics) {
+        Tracer tracer = sTracer;
+        if (tracer == null || !metrics.isTraced(tracer))
+            return null;
+
+        return tracer;
+    }
+
+    private static void traceRequest(HttpURLConnection urlConnection, RequestMetrics metrics) {
+        traceRequest(urlConnection, null, metrics);
+    }
+
+    private static void traceRequest(HttpURLConnection urlConnection, Object body,
+            RequestMetrics metrics) {
+        Tracer tracer = getTracer(metrics);
+        if (tracer != null) {
+            tracer.trace(metrics, Tracer.REQUEST_HEADERS, Traces.requestHeaders(urlConnection));
+            if (body != null)
+                tracer.trace(metrics, Tracer.REQUEST_BODY, Traces.payload(body));
+        }
+    }
+
+    private static void traceResponse(HttpURLConnection urlConnection, int responseCode,
+            Object response, RequestMetrics metrics) {
+        Tracer tracer = getTracer(metrics);
+        if (tracer != null) {
+            tracer.trace(metrics, Tracer.RESPONSE_HEADERS,
+                    Traces.responseHeaders(urlConnection, responseCode));
+            tracer.trace(metrics, Tracer.RESPONSE_BODY, Traces.payload(response));
+        }
+    }
+
+    /**
+     * Reads up to {@link #MAX_ERROR_BODY_BYTES} of an error response's body.
+     * The body is read whether or not the request is traced so a failed
+     * request behaves the same in every build.
+     */
+    private static void readErrorBody(HttpURLConnection urlConnection, RequestMetrics metrics) {
+        InputStream in = urlConnection.getErrorStream();
+        if (in == null)
+            return;
+
+        try {
+            in = ContentEncodings.decode(urlConnection, in);
+
+            byte[] buffer = new byte[MAX_ERROR_BODY_BYTES];
+            int count = 0;
+            int read;
+            while (count < buffer.length
+                    && (read = in.read(buffer, count, buffer.length - count)) != -1)
+                count += read;
+
+            Tracer tracer = getTracer(metrics);
+            if (tracer != null)
+                tracer.trace(metrics, Tracer.ERROR_BODY, Traces.payload(buffer, count,
+                        ResponseReader.getCharset(urlConnection)));
+        } catch (IOException e) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "IOException occured while reading response from server " + e);
+        }
+    }
+
+    private static class BitmapHandler implements ResponseHandler<Bitmap> {
+
+        private final int mWidth;
+        private final int mHeight;
+
+        public BitmapHandler(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public Bitmap handleResponse(HttpURLConnection urlConnection, InputStream in,
+                RequestMetrics metrics) throws IOException {
+            // the encoded image is buffered so the bounds can be decoded
+            // before the pixels
+            ResponseReader.Body body = ResponseReader.read(in,
+                    ResponseReader.getSizeHint(urlConnection));
+            long start = System.nanoTime();
+            try {
+                return sBitmapDecoder.decode(body.bytes, 0, body.count, mWidth, mHeight);
+            } finally {
+                metrics.decoded(System.nanoTime() - start);
+                body.release();
+            }
+        }
+    }
+
+    private static class ConnectionInputStream extends FilterInputStream {
+
+        private final HttpURLConnection mConnection;
+        private final CountingInputStream mTransferred;
+        private final RequestMetrics mMetrics;
+        private final boolean mReuseConnection;
+        private final long mOpened;
+        private boolean mClosed;
+
+        private ConnectionInputStream(HttpURLConnection urlConnection,
+                CountingInputStream transferred, InputStream in, RequestMetrics metrics,
+                boolean reuseConnection) {
+            super(new CountingInputStream(in));
+            mConnection = urlConnection;
+            mTransferred = transferred;
+            mMetrics = metrics;
+            mReuseConnection = reuseConnection;
+            mOpened = System.nanoTime();
+        }
+
+        public static ConnectionInputStream open(HttpURLConnection urlConnection,
+                InputStream in, RequestMetrics metrics, boolean reuseConnection)
+                throws IOException {
+            CountingInputStream transferred = new CountingInputStream(in);
+            return new ConnectionInputStream(urlConnection, transferred,
+                    ContentEncodings.decode(urlConnection, transferred), metrics,
+                    reuseConnection);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // closing a body that was read to the end returns the
+                // connection to the pool, closing it early discards it
+                if (!mReuseConnection)
+                    mConnection.disconnect();
+
+                if (!mClosed) {
+                    mClosed = true;
+                    mMetrics.bodyRead(System.nanoTime() - mOpened, mTransferred.getCount(),
+                            ((CountingInputStream) in).getCount());
+                    finished(mMetrics);
+                }
+            }
+        }
+    }
+
+    private static JsonReader newJsonReader(HttpURLConnection urlConnection, InputStream in)
+            throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in,
+                ResponseReader.getCharset(urlConnection)));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static <T> TypeAdapter<T> getAdapter(Type type) {
+        return getJsonAdapters().get(type);
+    }
+
+    private static void closeQuietly(JsonReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            if (DEBUG_HTTP)
+                Log.w(TAG, "IOException occured while closing json reader " + e);
+        }
+    }
+
+    /**
+     * Parses the response straight off of the connection's input stream, the
+     * body is never buffered as a String. IOExceptions from the underlying
+     * stream are passed through so the request can fall back to the cache,
+     * malformed json is reported as a {@link JsonSyntaxException}.
+     */
+    static class JsonHandler<T> implements ResponseHandler<T> {
+
+        private final Type mType;
+
+        public JsonHandler(Type type) {
+            mType = type;
+        }
+
+        @Override
+        public T handleResponse(HttpURLConnection urlConnection, InputStream in,
+                RequestMetrics metrics) throws IOException {
+            long start = System.nanoTime();
+            JsonReader reader = newJsonReader(urlConnection, in);
+
+            try {
+                reader.peek();
+            } catch (EOFException e) {
+                closeQuietly(reader);
+                return null;
+            }
+
+            try {
+                TypeAdapter<T> adapter = getAdapter(mType);
+                return adapter.read(reader);
+            } catch (MalformedJsonException e) {
+                throw new JsonSyntaxException(e);
+            } catch (IllegalStateException e) {
+                throw new JsonSyntaxException(e);
+            } finally {
+                closeQuietly(reader);
+                metrics.parsed(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Reuses the object parsed from an earlier response with the same
+     * validators instead of parsing the body again, and keeps newly parsed
+     * objects.
+     */
+    private static class ObjectCacheHandler<T> implements ResponseHandler<T> {
+
+        private final ResponseHandler<T> mHandler;
+        private final ObjectCache mCache;
+        private final String mKey;
+        private final String mUrl;
+
+        public ObjectCacheHandler(ResponseHandler<T> handler, ObjectCache cache, String key,
+                String url) {
+            mHandler = handler;
+            mCache = cache;
+            mKey = key;
+            mUrl = url;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T handleResponse(HttpURLConnection urlConnection, InputStream in,
+                RequestMetrics metrics) throws IOException {
+            String etag = urlConnection.getHeaderField("ETag");
+            String lastModified = urlConnection.getHeaderField("Last-Modified");
+            long freshUntil = ObjectCache.getFreshUntil(urlConnection);
+
+            Object value = mCache.getValidated(mKey, etag, lastModified, freshUntil);
+            if (value != null) {
+                // a body from the network is still read so the response
+                // cache stores it, one from the cache is left unread
+                int outcome = ResponseSources.getOutcome(urlConnection);
+                if (outcome == RequestMetrics.OUTCOME_NETWORK
+                        || outcome == RequestMetrics.OUTCOME_UNKNOWN)
+                    ResponseReader.skipAll(in);
+
+                return (T) value;
+            }
+
+            CountingInputStream counted = new CountingInputStream(in);
+            T response = mHandler.handleResponse(urlConnection, counted, metrics);
+            if (response != null && (etag != null || lastModified != null || freshUntil > 0))
+                mCache.put(mKey, mUrl, response, counted.getCount(), etag, lastModified,
+                        freshUntil);
+
+            return response;
+        }
+    }
+
+    private static class JsonArrayHandler<T> implements ResponseHandler<Integer>,
+            ResponseHandler.Streaming {
+
+        private final Type mElementType;
+        private final JsonElementCallback<T> mCallback;
+
+        public JsonArrayHandler(Type elementType, JsonElementCallback<T> callback) {
+            mElementType = elementType;
+            mCallback = callback;
+        }
+
+        @Override
+        public Integer handleResponse(HttpURLConnection urlConnection, InputStream in,
+                RequestMetrics metrics) throws IOException {
+            long start = System.nanoTime();
+            JsonReader reader = newJsonReader(urlConnection, in);
+            TypeAdapter<T> adapter = getAdapter(mElementType);
+            int count = 0;
+
+            try {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    mCallback.onElement(adapter.read(reader));
+                    count++;
+                }
+                reader.endArray();
+            } catch (MalformedJsonException e) {
+                throw new JsonSyntaxException(e);
+            } catch (IllegalStateException e) {
+                throw new JsonSyntaxException(e);
+            } catch (IOException e) {
+                if (count == 0)
+                    throw e;
+
+                if (DEBUG_HTTP)
+                    Log.w(TAG, "IOException occured after " + count
+                            + " elements were delivered " + e);
+
+                metrics.setOutcome(RequestMetrics.OUTCOME_PARTIAL);
+                return count;
+            } finally {
+                closeQuietly(reader);
+                metrics.parsed(System.nanoTime() - start);
+            }
+
+            return count;
+        }
+    }
+
     // http://izvornikod.com/Blog/tabid/82/EntryId/13/How-to-check-if-your-android-application-is-running-in-debug-or-release-mode.aspx
-    private boolean IsDebug() {
+    private static boolean IsDebug(Context context) {
         boolean debuggable = false;
 
-        PackageManager pm = mContext.getPackageManager();
+        PackageManager pm = context.getPackageManager();
         try {
-            ApplicationInfo appinfo = pm.getApplicationInfo(mContext.getPackageName(), 0);
+            ApplicationInfo appinfo = pm.getApplicationInfo(context.getPackageName(), 0);
             debuggable = (0 != (appinfo.flags &= ApplicationInfo.FLAG_DEBUGGABLE));
         } catch (NameNotFoundException e) {
             /* debuggable variable will remain false */
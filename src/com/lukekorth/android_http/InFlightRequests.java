@@ -0,0 +1,86 @@
+package com.lukekorth.android_http;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Lets concurrent callers asking for the same thing share a single request.
+ * The first caller for a key runs the request on its own thread, everyone
+ * else arriving before it finishes waits for and receives the same result.
+ */
+class InFlightRequests {
+
+    private final ConcurrentHashMap<String, Call<?>> mCalls = new ConcurrentHashMap<String, Call<?>>();
+
+    <T> T execute(String key, Callable<T> request) {
+        Call<T> call = new Call<T>(request);
+
+        @SuppressWarnings("unchecked")
+        Call<T> existing = (Call<T>) mCalls.putIfAbsent(key, call);
+        if (existing == null) {
+            try {
+                call.run();
+            } finally {
+                mCalls.remove(key, call);
+            }
+
+            return call.getResult();
+        }
+
+        T result = existing.getResult();
+
+        // a cancelled async request disconnects the connection everyone was
+        // waiting on, so make the request again rather than handing out its
+        // failure
+        if (result == null && existing.mCancelled) {
+            try {
+                return request.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        return result;
+    }
+
+    private static class Call<T> extends FutureTask<T> {
+
+        volatile boolean mCancelled;
+
+        public Call(Callable<T> request) {
+            super(request);
+        }
+
+        @Override
+        protected void set(T result) {
+            mCancelled = RequestFuture.isCurrentCancelled();
+            super.set(result);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            mCancelled = RequestFuture.isCurrentCancelled();
+            super.setException(t);
+        }
+
+        T getResult() {
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.lukekorth.android_http;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * A Gson and the type adapters it has built so far. Gson looks its adapters
+ * up under a lock and builds a new TypeToken for every lookup, these are
+ * found by their Type in a concurrent map instead. Replaced as a whole when
+ * the Gson is.
+ */
+class JsonAdapters {
+
+    final Gson gson;
+
+    private final ConcurrentHashMap<Type, TypeAdapter<?>> mAdapters = new ConcurrentHashMap<Type, TypeAdapter<?>>();
+
+    JsonAdapters(Gson gson) {
+        this.gson = gson;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> TypeAdapter<T> get(Type type) {
+        TypeAdapter<?> adapter = mAdapters.get(type);
+        if (adapter == null) {
+            adapter = gson.getAdapter(TypeToken.get(type));
+            mAdapters.put(type, adapter);
+        }
+
+        return (TypeAdapter<T>) adapter;
+    }
+}
@@ -0,0 +1,5 @@
+package com.lukekorth.android_http;
+
+public interface JsonElementCallback<T> {
+    public void onElement(T element);
+}
@@ -0,0 +1,71 @@
+package com.lukekorth.android_http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with logarithmic buckets, four per doubling
+ * from 100 microseconds up to about 100 seconds. Percentiles are accurate to
+ * within the width of a bucket, roughly 19%.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKET_COUNT = 82;
+    private static final double SMALLEST_BUCKET_MICROS = 100;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        mBuckets.incrementAndGet(bucketFor(nanos));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public double getMeanMillis() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99 for the p99 latency
+     * @return the upper bound of the bucket holding the percentile in
+     *         milliseconds, or 0 if nothing has been recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * (percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank)
+                return upperBoundMicros(i) / 1000.0;
+        }
+
+        return upperBoundMicros(BUCKET_COUNT - 1) / 1000.0;
+    }
+
+    private static int bucketFor(long nanos) {
+        double micros = nanos / 1000.0;
+        if (micros <= SMALLEST_BUCKET_MICROS)
+            return 0;
+
+        int bucket = (int) Math.ceil(BUCKETS_PER_DOUBLING
+                * (Math.log(micros / SMALLEST_BUCKET_MICROS) / Math.log(2)));
+
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static double upperBoundMicros(int bucket) {
+        return SMALLEST_BUCKET_MICROS * Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING);
+    }
+}
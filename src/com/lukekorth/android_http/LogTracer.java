@@ -0,0 +1,47 @@
+package com.lukekorth.android_http;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes traces to logcat. Installed by default in debuggable builds.
+ */
+public class LogTracer implements Tracer {
+
+    public static final int DEFAULT_MAX_LENGTH = 4 * 1024;
+
+    private static final String TAG = "android-http";
+    private static final String[] EVENTS = { "request headers", "request body",
+            "response headers", "response payload", "error response", "metrics" };
+
+    private final int mSampleEvery;
+    private final int mMaxLength;
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    /** Traces every request, cutting messages off after 4 KiB. */
+    public LogTracer() {
+        this(1, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param sampleEvery traces one in every {@code sampleEvery} requests.
+     * @param maxLength characters of each message to log, or -1 for all of
+     *            them.
+     */
+    public LogTracer(int sampleEvery, int maxLength) {
+        mSampleEvery = Math.max(1, sampleEvery);
+        mMaxLength = maxLength;
+    }
+
+    @Override
+    public boolean isSampled(RequestMetrics request) {
+        return mSampleEvery == 1 || (mRequests.getAndIncrement() & Integer.MAX_VALUE) % mSampleEvery == 0;
+    }
+
+    @Override
+    public void trace(RequestMetrics request, int event, Message message) {
+        Log.d(TAG, request.getMethod() + " " + request.getUrl() + " " + EVENTS[event] + ": "
+                + message.build(mMaxLength));
+    }
+}
@@ -0,0 +1,133 @@
+package com.lukekorth.android_http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers requests in memory on the calling thread without touching the
+ * network, so tests and benchmarks see the same responses every run.
+ * Responses are registered per url with {@link #respond(String, Response)}
+ * or produced by a {@link Handler}, anything else is answered with a 404.
+ */
+public class LoopbackTransport implements Transport {
+
+    public interface Handler {
+        /**
+         * @param body the request body, or null if there is none.
+         * @return the response, or null to answer with a 404.
+         */
+        public Response handle(String method, URL url, Map<String, List<String>> headers,
+                byte[] body) throws IOException;
+    }
+
+    public static class Response {
+
+        private final int mCode;
+        private final ArrayList<String> mHeaders = new ArrayList<String>();
+        private byte[] mBody = new byte[0];
+
+        public Response(int code) {
+            mCode = code;
+        }
+
+        public Response addHeader(String name, String value) {
+            mHeaders.add(name);
+            mHeaders.add(value);
+            return this;
+        }
+
+        public Response setBody(byte[] body) {
+            mBody = body;
+            return this;
+        }
+
+        public Response setBody(String body) {
+            try {
+                return setBody(body.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Response> mResponses = new ConcurrentHashMap<String, Response>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private volatile Handler mHandler;
+
+    /**
+     * Answers every request for {@code url} with {@code response}.
+     */
+    public LoopbackTransport respond(String url, Response response) {
+        mResponses.put(url, response);
+        return this;
+    }
+
+    /**
+     * Answers requests for urls without a registered response.
+     */
+    public LoopbackTransport setHandler(Handler handler) {
+        mHandler = handler;
+        return this;
+    }
+
+    /** @return the number of requests answered so far. */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        return new LoopbackConnection(url);
+    }
+
+    private class LoopbackConnection extends TransportConnection {
+
+        private volatile boolean mCancelled;
+
+        LoopbackConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        Response execute(String method, Map<String, List<String>> headers, byte[] body)
+                throws IOException {
+            if (mCancelled)
+                throw new IOException("Request was cancelled");
+
+            mRequestCount.incrementAndGet();
+
+            LoopbackTransport.Response response = mResponses.get(url.toString());
+            Handler handler = mHandler;
+            if (response == null && handler != null)
+                response = handler.handle(method, url, headers, body);
+
+            if (response == null)
+                response = new LoopbackTransport.Response(HTTP_NOT_FOUND);
+
+            TransportConnection.Response result = new TransportConnection.Response();
+            result.code = response.mCode;
+            result.headers.addAll(response.mHeaders);
+            if (result.getHeader("Content-Length") == null) {
+                result.headers.add("Content-Length");
+                result.headers.add(Integer.toString(response.mBody.length));
+            }
+            result.body = new ByteArrayInputStream(method.equals("HEAD") ? new byte[0]
+                    : response.mBody);
+
+            return result;
+        }
+
+        @Override
+        void cancel() {
+            mCancelled = true;
+        }
+    }
+}
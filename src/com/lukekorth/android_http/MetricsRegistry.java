@@ -0,0 +1,107 @@
+package com.lukekorth.android_http;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates request metrics per host: a latency histogram, bytes in and out
+ * and how many requests ended with each outcome. Recording is lock free.
+ */
+public class MetricsRegistry implements RequestListener {
+
+    public static class HostMetrics {
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final LatencyHistogram mFirstByte = new LatencyHistogram();
+        private final AtomicLongArray mOutcomes = new AtomicLongArray(
+                RequestMetrics.OUTCOME_COUNT);
+        private final AtomicLong mBytesIn = new AtomicLong();
+        private final AtomicLong mBytesOut = new AtomicLong();
+        private final AtomicLong mBodyBytesIn = new AtomicLong();
+        private final AtomicLong mConnectionsOpened = new AtomicLong();
+        private final AtomicLong mConnectionsReused = new AtomicLong();
+
+        /** Total request latency. */
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        /** Latency until the response headers arrived, network requests only. */
+        public LatencyHistogram getFirstByteLatency() {
+            return mFirstByte;
+        }
+
+        public long getOutcomeCount(int outcome) {
+            return mOutcomes.get(outcome);
+        }
+
+        public long getBytesIn() {
+            return mBytesIn.get();
+        }
+
+        public long getBytesOut() {
+            return mBytesOut.get();
+        }
+
+        /** Decompressed response bytes for every byte received. */
+        public double getCompressionRatio() {
+            long bytesIn = mBytesIn.get();
+            return bytesIn == 0 ? 1 : (double) mBodyBytesIn.get() / bytesIn;
+        }
+
+        /** Requests that had to open a new connection to the host. */
+        public long getConnectionsOpened() {
+            return mConnectionsOpened.get();
+        }
+
+        /** Requests that used a connection from the keep-alive pool. */
+        public long getConnectionsReused() {
+            return mConnectionsReused.get();
+        }
+    }
+
+    private final ConcurrentHashMap<String, HostMetrics> mHosts = new ConcurrentHashMap<String, HostMetrics>();
+
+    @Override
+    public void onRequestFinished(RequestMetrics metrics) {
+        HostMetrics host = getHostMetrics(metrics.getHost());
+
+        host.mLatency.record(metrics.getTotalNanos());
+        if (metrics.getOutcome() == RequestMetrics.OUTCOME_NETWORK
+                || metrics.getOutcome() == RequestMetrics.OUTCOME_VALIDATED) {
+            host.mFirstByte.record(metrics.getFirstByteNanos());
+
+            if (metrics.isConnectionReused()) {
+                host.mConnectionsReused.incrementAndGet();
+            } else {
+                host.mConnectionsOpened.incrementAndGet();
+            }
+        }
+
+        host.mOutcomes.incrementAndGet(metrics.getOutcome());
+        host.mBytesIn.addAndGet(metrics.getBytesIn());
+        host.mBytesOut.addAndGet(metrics.getBytesOut());
+        host.mBodyBytesIn.addAndGet(metrics.getBodyBytesIn());
+    }
+
+    public Set<String> getHosts() {
+        return mHosts.keySet();
+    }
+
+    public HostMetrics getHostMetrics(String host) {
+        HostMetrics metrics = mHosts.get(host);
+        if (metrics == null) {
+            metrics = new HostMetrics();
+            HostMetrics existing = mHosts.putIfAbsent(host, metrics);
+            if (existing != null)
+                metrics = existing;
+        }
+
+        return metrics;
+    }
+
+    public void reset() {
+        mHosts.clear();
+    }
+}
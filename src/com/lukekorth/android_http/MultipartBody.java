@@ -0,0 +1,178 @@
+package com.lukekorth.android_http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A multipart/form-data request body made of text fields and file or byte
+ * array parts. The exact length is known before anything is written so the
+ * body can be streamed with a fixed Content-Length, files are copied through
+ * a small buffer and never held in memory.
+ */
+public class MultipartBody {
+
+    private static final String LINE_END = "\r\n";
+    private static final String TWO_HYPHENS = "--";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String mBoundary;
+    private final ArrayList<Part> mParts = new ArrayList<Part>();
+
+    private static class Part {
+        byte[] header;
+        String value;
+        byte[] data;
+        File file;
+
+        long getLength() throws UnsupportedEncodingException {
+            if (file != null)
+                return file.length();
+            if (data != null)
+                return data.length;
+
+            return value.getBytes("UTF-8").length;
+        }
+
+        InputStream open() throws IOException {
+            if (file != null)
+                return new FileInputStream(file);
+            if (data != null)
+                return new ByteArrayInputStream(data);
+
+            return new ByteArrayInputStream(value.getBytes("UTF-8"));
+        }
+    }
+
+    public MultipartBody() {
+        mBoundary = "android-http-" + Long.toHexString(new Random().nextLong())
+                + Long.toHexString(System.currentTimeMillis());
+    }
+
+    public MultipartBody addField(String name, String value) {
+        Part part = new Part();
+        part.header = header(name, null, null);
+        part.value = value;
+        mParts.add(part);
+
+        return this;
+    }
+
+    public MultipartBody addFile(String name, File file, String contentType) {
+        Part part = new Part();
+        part.header = header(name, file.getName(), contentType);
+        part.file = file;
+        mParts.add(part);
+
+        return this;
+    }
+
+    public MultipartBody addPart(String name, String filename, String contentType, byte[] data) {
+        Part part = new Part();
+        part.header = header(name, filename, contentType);
+        part.data = data;
+        mParts.add(part);
+
+        return this;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + mBoundary;
+    }
+
+    /**
+     * @return the exact number of bytes {@link #writeTo} will write.
+     */
+    public long getContentLength() throws IOException {
+        long length = 0;
+        for (Part part : mParts)
+            length += part.header.length + part.getLength() + LINE_END.length();
+
+        return length + closingDelimiter().length;
+    }
+
+    /**
+     * Writes the body to {@code out}, reporting the percentage of the body
+     * that has been handed to the stream after every write.
+     */
+    public void writeTo(OutputStream out, ProgressCallback callback) throws IOException {
+        long total = getContentLength();
+        long written = 0;
+        int lastProgress = -1;
+
+        byte[] buffer = BufferPool.getDefault().getBuf(BUFFER_SIZE);
+        try {
+            for (Part part : mParts) {
+                out.write(part.header);
+                written += part.header.length;
+
+                InputStream in = part.open();
+                try {
+                    int read;
+                    while ((read = in.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                        out.write(buffer, 0, read);
+                        written += read;
+
+                        lastProgress = reportProgress(callback, written, total, lastProgress);
+                    }
+                } finally {
+                    in.close();
+                }
+
+                out.write(LINE_END.getBytes("UTF-8"));
+                written += LINE_END.length();
+            }
+
+            out.write(closingDelimiter());
+            out.flush();
+
+            reportProgress(callback, total, total, lastProgress);
+        } finally {
+            BufferPool.getDefault().returnBuf(buffer);
+        }
+    }
+
+    private static int reportProgress(ProgressCallback callback, long written, long total,
+            int lastProgress) {
+        int progress = total == 0 ? 100 : (int) ((written * 100) / total);
+        if (callback != null && progress != lastProgress)
+            callback.MakeProgress(progress);
+
+        return progress;
+    }
+
+    private byte[] header(String name, String filename, String contentType) {
+        StringBuilder header = new StringBuilder(128);
+        header.append(TWO_HYPHENS).append(mBoundary).append(LINE_END);
+        header.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+
+        if (filename != null)
+            header.append("; filename=\"").append(escape(filename)).append('"');
+        header.append(LINE_END);
+
+        if (contentType != null)
+            header.append("Content-Type: ").append(contentType).append(LINE_END);
+        header.append(LINE_END);
+
+        try {
+            return header.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private byte[] closingDelimiter() throws UnsupportedEncodingException {
+        return (TWO_HYPHENS + mBoundary + TWO_HYPHENS + LINE_END).getBytes("UTF-8");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+}
@@ -0,0 +1,240 @@
+package com.lukekorth.android_http;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An in memory LRU of objects parsed from json responses, keyed by url and
+ * type, in front of the response cache. While the response it was parsed
+ * from is still fresh an object is returned without any I/O. Once it is
+ * stale the response is revalidated as usual and the object is reused if
+ * the response still has the same ETag or Last-Modified date.
+ *
+ * Objects are shared between every caller asking for the same url and
+ * type, so they must not be modified.
+ */
+public class ObjectCache {
+
+    /** Objects are held until they are evicted. */
+    public static final int STRONG = 0;
+    /** Objects may be reclaimed when memory is low. */
+    public static final int SOFT = 1;
+    /** Objects are reclaimed once nothing else refers to them. */
+    public static final int WEAK = 2;
+
+    private static class Entry {
+        final String url;
+        final Object value;
+        final long size;
+        final String etag;
+        final String lastModified;
+        long freshUntil;
+
+        Entry(String url, Object value, long size, String etag, String lastModified,
+                long freshUntil) {
+            this.url = url;
+            this.value = value;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.freshUntil = freshUntil;
+        }
+
+        Object get() {
+            return value instanceof Reference ? ((Reference<?>) value).get() : value;
+        }
+
+        boolean matches(String etag, String lastModified) {
+            if (etag != null || this.etag != null)
+                return etag != null && etag.equals(this.etag);
+
+            return lastModified != null && lastModified.equals(this.lastModified);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16,
+            0.75f, true);
+    private final int mMaxEntries;
+    private final long mMaxSize;
+    private final int mReferences;
+    private long mSize;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param maxEntries number of objects kept.
+     * @param maxSize total size of the json the objects were parsed from,
+     *            a rough estimate of the memory they use.
+     * @param references one of {@link #STRONG}, {@link #SOFT} or
+     *            {@link #WEAK}.
+     */
+    public ObjectCache(int maxEntries, long maxSize, int references) {
+        mMaxEntries = maxEntries;
+        mMaxSize = maxSize;
+        mReferences = references;
+    }
+
+    static String getKey(String url, Type type, String configKey) {
+        return url + "\n" + type + configKey;
+    }
+
+    /**
+     * @return the object if the response it was parsed from is going to be
+     *         fresh for at least another {@code minFreshMs}, otherwise null.
+     */
+    synchronized Object getFresh(String key, long minFreshMs) {
+        Entry entry = mEntries.get(key);
+        Object value = entry != null ? get(key, entry) : null;
+        if (value == null || System.currentTimeMillis() + minFreshMs >= entry.freshUntil) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        return value;
+    }
+
+    /**
+     * @return the object if it was parsed from a response with the same
+     *         validators, it is then fresh until {@code freshUntil}.
+     */
+    synchronized Object getValidated(String key, String etag, String lastModified,
+            long freshUntil) {
+        Entry entry = mEntries.get(key);
+        Object value = entry != null ? get(key, entry) : null;
+        if (value == null || !entry.matches(etag, lastModified))
+            return null;
+
+        entry.freshUntil = freshUntil;
+        mHitCount++;
+        return value;
+    }
+
+    synchronized void put(String key, String url, Object value, long size, String etag,
+            String lastModified, long freshUntil) {
+        if (size > mMaxSize) {
+            // an object parsed from an older response must not outlive it
+            Entry previous = mEntries.remove(key);
+            if (previous != null)
+                mSize -= previous.size;
+            return;
+        }
+
+        Object held = value;
+        if (mReferences == SOFT) {
+            held = new SoftReference<Object>(value);
+        } else if (mReferences == WEAK) {
+            held = new WeakReference<Object>(value);
+        }
+
+        Entry previous = mEntries.put(key, new Entry(url, held, size, etag, lastModified,
+                freshUntil));
+        if (previous != null)
+            mSize -= previous.size;
+        mSize += size;
+
+        trim();
+    }
+
+    /**
+     * Removes the objects for {@code url} that were not parsed from a
+     * response with these validators, called when the cached response
+     * changes.
+     */
+    synchronized void invalidate(String url, String etag, String lastModified) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.url.equals(url) && !entry.matches(etag, lastModified)) {
+                iterator.remove();
+                mSize -= entry.size;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private Object get(String key, Entry entry) {
+        Object value = entry.get();
+        if (value == null) {
+            // reclaimed by the garbage collector
+            mEntries.remove(key);
+            mSize -= entry.size;
+        }
+
+        return value;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while ((mSize > mMaxSize || mEntries.size() > mMaxEntries) && iterator.hasNext()) {
+            mSize -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return until when a response may be used without revalidating it,
+     *         going by its Cache-Control max-age or Expires header, or 0 if
+     *         it must always be revalidated.
+     */
+    static long getFreshUntil(HttpURLConnection urlConnection) {
+        long now = System.currentTimeMillis();
+        long date = urlConnection.getDate();
+        long age = date > 0 ? Math.max(0, now - date) : 0;
+
+        String ageHeader = urlConnection.getHeaderField("Age");
+        if (ageHeader != null) {
+            try {
+                age = Math.max(age, Long.parseLong(ageHeader.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                /* go by the date alone */
+            }
+        }
+
+        String cacheControl = urlConnection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            cacheControl = cacheControl.toLowerCase(Locale.US);
+            if (cacheControl.contains("no-cache") || cacheControl.contains("no-store"))
+                return 0;
+
+            int maxAge = cacheControl.indexOf("max-age=");
+            if (maxAge != -1) {
+                int start = maxAge + "max-age=".length();
+                int end = start;
+                while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end)))
+                    end++;
+
+                try {
+                    return now + Long.parseLong(cacheControl.substring(start, end)) * 1000 - age;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        long expires = urlConnection.getExpiration();
+        if (expires <= 0)
+            return 0;
+
+        return date > 0 ? now + (expires - date) - age : expires;
+    }
+}
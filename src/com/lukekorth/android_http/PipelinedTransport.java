@@ -0,0 +1,899 @@
+package com.lukekorth.android_http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends plain http requests over a few kept-alive sockets per host, writing
+ * gets and heads back to back without waiting for earlier responses
+ * (HTTP/1.1 pipelining). The headers of each response are read by
+ * whichever waiting request gets to them first and handed to the request
+ * they belong to, whose body then streams straight off the socket. The
+ * responses behind it are read once that body has been read to the end or
+ * closed, so bodies must always be closed. Requests a closed connection
+ * left unanswered are sent again on a new one.
+ *
+ * Other methods are never pipelined, they are sent on a connection of their
+ * own and never sent twice. https urls are handed to the platform's
+ * HttpURLConnection.
+ */
+public class PipelinedTransport implements Transport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+    public static final int DEFAULT_MAX_PIPELINE_DEPTH = 4;
+
+    private static final long IDLE_TIMEOUT_MS = 30 * 1000;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final int mMaxConnections;
+    private final int mMaxDepth;
+    private final HashMap<String, ArrayList<Pipeline>> mPipelines =
+            new HashMap<String, ArrayList<Pipeline>>();
+
+    public PipelinedTransport() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_PIPELINE_DEPTH);
+    }
+
+    /**
+     * @param maxConnectionsPerHost sockets opened to a host for pipelined
+     *            requests.
+     * @param maxDepth requests queued on a socket before another one is
+     *            opened, once every socket is this deep requests queue on
+     *            the shallowest.
+     */
+    public PipelinedTransport(int maxConnectionsPerHost, int maxDepth) {
+        if (maxConnectionsPerHost < 1 || maxDepth < 1)
+            throw new IllegalArgumentException("maxConnectionsPerHost and maxDepth must be > 0");
+
+        mMaxConnections = maxConnectionsPerHost;
+        mMaxDepth = maxDepth;
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        if (!"http".equals(url.getProtocol()))
+            return (HttpURLConnection) url.openConnection();
+
+        return new PipelinedConnection(url);
+    }
+
+    /**
+     * Closes every idle socket.
+     */
+    public void evictAll() {
+        ArrayList<Pipeline> idle = new ArrayList<Pipeline>();
+        synchronized (this) {
+            for (ArrayList<Pipeline> pipelines : mPipelines.values()) {
+                for (int i = pipelines.size() - 1; i >= 0; i--) {
+                    if (pipelines.get(i).isIdle())
+                        idle.add(pipelines.remove(i));
+                }
+            }
+        }
+
+        for (Pipeline pipeline : idle)
+            pipeline.close();
+    }
+
+    private synchronized Pipeline acquire(String host, int port, boolean idempotent) {
+        String address = host + ":" + port;
+        ArrayList<Pipeline> pipelines = mPipelines.get(address);
+        if (pipelines == null) {
+            pipelines = new ArrayList<Pipeline>();
+            mPipelines.put(address, pipelines);
+        }
+
+        long now = System.currentTimeMillis();
+        Pipeline shallowest = null;
+        for (int i = pipelines.size() - 1; i >= 0; i--) {
+            Pipeline pipeline = pipelines.get(i);
+            if (pipeline.isIdle() && now - pipeline.mLastUsed > IDLE_TIMEOUT_MS) {
+                pipelines.remove(i);
+                pipeline.close();
+            } else if (!pipeline.mExclusive
+                    && (shallowest == null || pipeline.mQueued < shallowest.mQueued)) {
+                shallowest = pipeline;
+            }
+        }
+
+        Pipeline pipeline = null;
+        if (shallowest != null) {
+            if (shallowest.mQueued == 0 && (idempotent || shallowest.isIdle())) {
+                pipeline = shallowest;
+            } else if (idempotent
+                    && (shallowest.mQueued < mMaxDepth || pipelines.size() >= mMaxConnections)) {
+                pipeline = shallowest;
+            }
+        }
+
+        if (pipeline == null) {
+            pipeline = new Pipeline(host, port);
+            pipelines.add(pipeline);
+        }
+
+        // reserved here so requests acquiring at the same time spread out
+        pipeline.mQueued++;
+        pipeline.mExclusive |= !idempotent;
+        pipeline.mLastUsed = now;
+        return pipeline;
+    }
+
+    private synchronized void release(Pipeline pipeline, boolean idempotent) {
+        pipeline.mQueued--;
+        if (!idempotent)
+            pipeline.mExclusive = false;
+
+        pipeline.mLastUsed = System.currentTimeMillis();
+    }
+
+    private static class Exchange {
+        final byte[] request;
+        final boolean head;
+        final boolean idempotent;
+        final int connectTimeout;
+        final int readTimeout;
+
+        int attempts;
+        boolean connectionReused;
+
+        // guarded by the pipeline
+        boolean done;
+        TransportConnection.Response response;
+        IOException error;
+
+        Exchange(byte[] request, boolean head, boolean idempotent, int connectTimeout,
+                int readTimeout) {
+            this.request = request;
+            this.head = head;
+            this.idempotent = idempotent;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+    }
+
+    /**
+     * One socket and the requests written to it that are waiting for their
+     * responses, in the order they were sent. No socket I/O happens while
+     * the pipeline's lock is held, so cancelling never waits for a connect
+     * or a write. Writes are ordered by a lock of their own.
+     */
+    private static class Pipeline {
+
+        final String mHost;
+        final int mPort;
+
+        // guarded by the transport
+        int mQueued;
+        boolean mExclusive;
+        long mLastUsed;
+
+        private final Object mWriteLock = new Object();
+        // the socket being connected and the exchange it is connected for
+        private volatile Socket mConnecting;
+        private volatile Exchange mConnectingFor;
+
+        // guarded by this
+        private Socket mSocket;
+        private InputStream mIn;
+        private OutputStream mOut;
+        private int mSent;
+        private final LinkedList<Exchange> mPending = new LinkedList<Exchange>();
+        // the exchange whose headers are being read
+        private Exchange mReading;
+        // the exchange whose body is being read
+        private Exchange mStreaming;
+
+        Pipeline(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+
+        /**
+         * Writes the request of {@code exchange}, connecting first if there
+         * is no socket. A failed write resets the connection, the exchange's
+         * {@link #await(Exchange)} then reports the outcome.
+         *
+         * @throws IOException if the connection could not be opened.
+         */
+        void send(Exchange exchange) throws IOException {
+            synchronized (mWriteLock) {
+                Socket socket;
+                OutputStream out;
+                synchronized (this) {
+                    if (exchange.done)
+                        return;
+
+                    socket = mSocket;
+                    out = mOut;
+                }
+
+                if (socket == null) {
+                    socket = connect(exchange);
+                    out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+                    InputStream in = new BufferedInputStream(socket.getInputStream(),
+                            BUFFER_SIZE);
+                    synchronized (this) {
+                        mSocket = socket;
+                        mIn = in;
+                        mOut = out;
+                        mSent = 0;
+                    }
+                }
+
+                synchronized (this) {
+                    if (exchange.done)
+                        return;
+
+                    exchange.attempts++;
+                    exchange.connectionReused = mSent++ > 0;
+                    mPending.add(exchange);
+                    notifyAll();
+                }
+
+                try {
+                    out.write(exchange.request);
+                    out.flush();
+                } catch (IOException e) {
+                    List<Exchange> resend;
+                    synchronized (this) {
+                        if (mSocket != socket)
+                            return;
+
+                        resend = reset(e, true, null);
+                    }
+                    resend(resend);
+                }
+            }
+        }
+
+        private Socket connect(Exchange exchange) throws IOException {
+            Socket socket = new Socket();
+            mConnecting = socket;
+            mConnectingFor = exchange;
+            try {
+                if (exchange.done)
+                    throw new IOException("Request was cancelled");
+
+                socket.connect(new InetSocketAddress(mHost, mPort), exchange.connectTimeout);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            } finally {
+                mConnectingFor = null;
+                mConnecting = null;
+            }
+        }
+
+        /**
+         * @return true if no request is waiting on the socket and no response
+         *         body is being read off it, its reservations are counted
+         *         separately.
+         */
+        synchronized boolean isIdle() {
+            return mQueued == 0 && mPending.isEmpty() && mReading == null && mStreaming == null;
+        }
+
+        /**
+         * Waits for the response to {@code exchange}, reading the headers of
+         * the responses queued in front of it if nobody else is.
+         */
+        TransportConnection.Response await(Exchange exchange) throws IOException {
+            while (true) {
+                Exchange head;
+                Socket socket;
+                InputStream in;
+                synchronized (this) {
+                    // the pending requests are empty while they are sent again
+                    while (!exchange.done
+                            && (mReading != null || mStreaming != null || mPending.isEmpty())) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+
+                    if (exchange.done)
+                        break;
+
+                    head = mPending.getFirst();
+                    mReading = head;
+                    socket = mSocket;
+                    in = mIn;
+                    socket.setSoTimeout(head.readTimeout);
+                }
+
+                TransportConnection.Response response;
+                Body body;
+                boolean started = false;
+                try {
+                    in.mark(1);
+                    if (in.read() == -1)
+                        throw new EOFException("Connection closed before the response");
+                    in.reset();
+                    started = true;
+
+                    response = readHeaders(in);
+                    body = newBody(this, in, response, head);
+                } catch (IOException e) {
+                    List<Exchange> resend = null;
+                    synchronized (this) {
+                        mReading = null;
+                        if (mSocket == socket)
+                            resend = reset(e, true, started ? head : null);
+                        else
+                            notifyAll();
+                    }
+                    resend(resend);
+                    continue;
+                }
+
+                Body discard = null;
+                List<Exchange> resend = null;
+                synchronized (this) {
+                    mReading = null;
+                    if (mSocket != socket) {
+                        // the connection was reset meanwhile, the requests
+                        // it had were sent again
+                        notifyAll();
+                        continue;
+                    }
+
+                    mPending.removeFirst();
+
+                    response.body = body != null ? body : new ByteArrayInputStream(new byte[0]);
+                    if (body != null)
+                        mStreaming = head;
+
+                    if (!head.done) {
+                        response.connectionReused = head.connectionReused;
+                        head.response = response;
+                        head.done = true;
+                    } else {
+                        discard = body;
+                    }
+
+                    if (body == null && !response.keepAlive)
+                        resend = reset(new EOFException("Connection closed by the server"), false,
+                                null);
+                    else
+                        notifyAll();
+                }
+                resend(resend);
+
+                // the response of a cancelled request is thrown away to
+                // keep the ones behind it in order
+                if (discard != null)
+                    discard.close();
+            }
+
+            if (exchange.error != null)
+                throw exchange.error;
+
+            return exchange.response;
+        }
+
+        /**
+         * Called once the body of {@code exchange} has been read to its end.
+         */
+        void finished(Exchange exchange, boolean keepAlive) {
+            List<Exchange> resend = null;
+            synchronized (this) {
+                if (mStreaming != exchange)
+                    return;
+
+                mStreaming = null;
+                if (!keepAlive)
+                    resend = reset(new EOFException("Connection closed by the server"), false,
+                            null);
+                else
+                    notifyAll();
+            }
+            resend(resend);
+        }
+
+        /**
+         * Called when the body of {@code exchange} cannot be read to its end,
+         * the socket is closed and the requests behind it are sent again.
+         *
+         * @param failed see {@link #reset(IOException, boolean, Exchange)}.
+         */
+        void abandoned(Exchange exchange, IOException cause, boolean failed) {
+            List<Exchange> resend;
+            synchronized (this) {
+                if (mStreaming != exchange)
+                    return;
+
+                mStreaming = null;
+                resend = reset(cause, failed, null);
+            }
+            resend(resend);
+        }
+
+        /**
+         * Gives up on an exchange. Its response is still read and thrown
+         * away to keep the ones behind it in order, unless it is the one
+         * being read, then the socket is closed and the requests behind it
+         * are sent again. A socket still being connected for it is closed.
+         */
+        void cancel(Exchange exchange) {
+            boolean streaming;
+            synchronized (this) {
+                streaming = mStreaming == exchange;
+                if (!streaming && !exchange.done) {
+                    exchange.error = new IOException("Request was cancelled");
+                    exchange.done = true;
+
+                    // the thread reading the headers fails and resets the
+                    // connection, so the socket is left in place for it
+                    if (mReading == exchange) {
+                        try {
+                            mSocket.close();
+                        } catch (IOException e) {
+                            /* the read fails either way */
+                        }
+                    }
+
+                    notifyAll();
+                }
+            }
+
+            if (streaming) {
+                // whoever is reading the body fails on the closed socket
+                abandoned(exchange, new IOException("Request was cancelled"), false);
+                return;
+            }
+
+            Socket connecting = mConnecting;
+            if (connecting != null && mConnectingFor == exchange) {
+                try {
+                    connecting.close();
+                } catch (IOException e) {
+                    /* the connect fails either way */
+                }
+            }
+        }
+
+        synchronized void close() {
+            closeSocket();
+        }
+
+        /**
+         * Closes the socket and takes the requests that were still waiting
+         * off it, those that may be repeated are returned to be sent again
+         * with {@link #resend(List)} once the lock has been let go of. A
+         * request that is not idempotent is only repeated if it was sent on
+         * a reused connection and no part of its response was read, like
+         * HttpURLConnection does with recycled connections.
+         *
+         * @param failed whether the connection failed rather than being
+         *            closed after a complete response, requests only get
+         *            {@link #MAX_ATTEMPTS} failures.
+         * @param started the request part of whose response was read, if
+         *            any.
+         */
+        // callers hold the lock
+        private List<Exchange> reset(IOException cause, boolean failed, Exchange started) {
+            closeSocket();
+
+            ArrayList<Exchange> resend = new ArrayList<Exchange>(mPending.size());
+            for (Exchange exchange : mPending) {
+                if (exchange.done)
+                    continue;
+
+                boolean repeatable = exchange.idempotent
+                        || (exchange.connectionReused && exchange != started);
+                if (!repeatable || (failed && exchange.attempts >= MAX_ATTEMPTS)) {
+                    exchange.error = cause;
+                    exchange.done = true;
+                    continue;
+                }
+
+                if (!failed)
+                    exchange.attempts--;
+
+                resend.add(exchange);
+            }
+            mPending.clear();
+
+            notifyAll();
+            return resend;
+        }
+
+        private void resend(List<Exchange> exchanges) {
+            if (exchanges == null)
+                return;
+
+            for (Exchange exchange : exchanges) {
+                try {
+                    send(exchange);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (!exchange.done) {
+                            exchange.error = e;
+                            exchange.done = true;
+                        }
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        // callers hold the lock
+        private void closeSocket() {
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    /* nothing left to do with it */
+                }
+            }
+
+            mSocket = null;
+            mIn = null;
+            mOut = null;
+        }
+    }
+
+    /**
+     * A response body read straight off the socket. The pipeline is told
+     * once it has been read to its end, closing it first reads what is left
+     * of a short body and otherwise gives up on the connection.
+     */
+    private static class Body extends InputStream {
+
+        static final long CHUNKED = -1;
+        static final long UNTIL_CLOSED = -2;
+
+        private final Pipeline mPipeline;
+        private final Exchange mExchange;
+        private final InputStream mIn;
+        private final boolean mChunked;
+        private final boolean mKeepAlive;
+
+        // bytes left of the body or the current chunk, -1 until the end of
+        // the stream
+        private long mRemaining;
+        private boolean mChunkRead;
+        private boolean mFinished;
+        private boolean mFailed;
+
+        Body(Pipeline pipeline, Exchange exchange, InputStream in, long length,
+                boolean keepAlive) {
+            mPipeline = pipeline;
+            mExchange = exchange;
+            mIn = in;
+            mChunked = length == CHUNKED;
+            mKeepAlive = keepAlive;
+            mRemaining = length == UNTIL_CLOSED ? -1 : Math.max(0, length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (mFinished)
+                return -1;
+            if (mFailed)
+                throw new IOException("Response body was closed");
+            if (len == 0)
+                return 0;
+
+            try {
+                if (mChunked && mRemaining == 0) {
+                    if (mChunkRead)
+                        readLine(mIn);
+
+                    mRemaining = readChunkSize();
+                    mChunkRead = true;
+                    if (mRemaining == 0) {
+                        // trailers
+                        String line;
+                        while ((line = readLine(mIn)) != null && line.length() > 0) {
+                            /* ignored */
+                        }
+
+                        finish();
+                        return -1;
+                    }
+                }
+
+                int read = mIn.read(b, off, mRemaining < 0 ? len
+                        : (int) Math.min(len, mRemaining));
+                if (read == -1) {
+                    if (mRemaining < 0) {
+                        finish();
+                        return -1;
+                    }
+
+                    throw new EOFException("Connection closed in the response body");
+                }
+
+                if (mRemaining > 0) {
+                    mRemaining -= read;
+                    if (mRemaining == 0 && !mChunked)
+                        finish();
+                }
+
+                return read;
+            } catch (IOException e) {
+                fail(e, true);
+                throw e;
+            }
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            if (mFinished || mFailed)
+                return 0;
+
+            int available = mIn.available();
+            return mRemaining < 0 ? available : (int) Math.min(available, mRemaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (mFinished || mFailed)
+                    return;
+            }
+
+            // cheaper to open a new connection than to read on
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int drained = 0;
+            try {
+                int read;
+                while (drained <= MAX_DRAIN_BYTES && (read = read(buffer)) != -1)
+                    drained += read;
+            } catch (IOException e) {
+                return;
+            }
+
+            synchronized (this) {
+                if (!mFinished)
+                    fail(new IOException("Response body was closed before its end"), false);
+            }
+        }
+
+        private long readChunkSize() throws IOException {
+            String line = readLine(mIn);
+            if (line == null)
+                throw new EOFException("Connection closed in a chunked body");
+
+            int extension = line.indexOf(';');
+            try {
+                return Long.parseLong((extension != -1 ? line.substring(0, extension) : line)
+                        .trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid chunk size " + line);
+            }
+        }
+
+        private void finish() {
+            mFinished = true;
+            mPipeline.finished(mExchange, mKeepAlive);
+        }
+
+        private void fail(IOException cause, boolean failed) {
+            mFailed = true;
+            mPipeline.abandoned(mExchange, cause, failed);
+        }
+    }
+
+    private class PipelinedConnection extends TransportConnection {
+
+        private volatile Exchange mExchange;
+        private volatile Pipeline mPipeline;
+        private volatile boolean mCancelled;
+
+        PipelinedConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        Response execute(String method, Map<String, List<String>> headers, byte[] body)
+                throws IOException {
+            boolean idempotent = method.equals("GET") || method.equals("HEAD");
+            Exchange exchange = new Exchange(encodeRequest(url, method, headers, body),
+                    method.equals("HEAD"), idempotent, getConnectTimeout(), getReadTimeout());
+
+            int port = url.getPort() != -1 ? url.getPort() : 80;
+            Pipeline pipeline = acquire(url.getHost(), port, idempotent);
+            try {
+                mPipeline = pipeline;
+                mExchange = exchange;
+                if (mCancelled)
+                    throw new IOException("Request was cancelled");
+
+                pipeline.send(exchange);
+                return pipeline.await(exchange);
+            } finally {
+                release(pipeline, idempotent);
+            }
+        }
+
+        @Override
+        void cancel() {
+            mCancelled = true;
+
+            Pipeline pipeline = mPipeline;
+            Exchange exchange = mExchange;
+            if (pipeline != null && exchange != null)
+                pipeline.cancel(exchange);
+        }
+    }
+
+    private static byte[] encodeRequest(URL url, String method,
+            Map<String, List<String>> headers, byte[] body) throws UnsupportedEncodingException {
+        StringBuilder request = new StringBuilder(256);
+        String file = url.getFile();
+        request.append(method).append(' ').append(file.length() > 0 ? file : "/")
+                .append(" HTTP/1.1\r\n");
+
+        request.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != 80)
+            request.append(':').append(url.getPort());
+        request.append("\r\n");
+
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (name == null || name.equalsIgnoreCase("Host")
+                    || name.equalsIgnoreCase("Content-Length")
+                    || name.equalsIgnoreCase("Transfer-Encoding")
+                    || name.equalsIgnoreCase("Connection"))
+                continue;
+
+            for (String value : header.getValue())
+                request.append(name).append(": ").append(value).append("\r\n");
+        }
+
+        if (body != null || method.equals("POST") || method.equals("PUT"))
+            request.append("Content-Length: ").append(body != null ? body.length : 0)
+                    .append("\r\n");
+        request.append("\r\n");
+
+        byte[] head = request.toString().getBytes("ISO-8859-1");
+        if (body == null || body.length == 0)
+            return head;
+
+        byte[] bytes = new byte[head.length + body.length];
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        System.arraycopy(body, 0, bytes, head.length, body.length);
+        return bytes;
+    }
+
+    /**
+     * @return the body that follows the headers of {@code response}, or null
+     *         if it has none.
+     */
+    private static Body newBody(Pipeline pipeline, InputStream in,
+            TransportConnection.Response response, Exchange exchange) throws ProtocolException {
+        String connection = response.getHeader("Connection");
+        if (connection != null && connection.equalsIgnoreCase("close"))
+            response.keepAlive = false;
+
+        if (exchange.head || response.code == HttpURLConnection.HTTP_NO_CONTENT
+                || response.code == HttpURLConnection.HTTP_NOT_MODIFIED)
+            return null;
+
+        String transferEncoding = response.getHeader("Transfer-Encoding");
+        if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.US).contains("chunked"))
+            return new Body(pipeline, exchange, in, Body.CHUNKED, response.keepAlive);
+
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength != null) {
+            long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length " + contentLength);
+            }
+
+            return length == 0 ? null
+                    : new Body(pipeline, exchange, in, length, response.keepAlive);
+        }
+
+        // the body ends with the connection
+        response.keepAlive = false;
+        return new Body(pipeline, exchange, in, Body.UNTIL_CLOSED, false);
+    }
+
+    private static TransportConnection.Response readHeaders(InputStream in) throws IOException {
+        TransportConnection.Response response;
+        do {
+            response = readHeaderBlock(in);
+        } while (response.code >= 100 && response.code < 200);
+
+        return response;
+    }
+
+    private static TransportConnection.Response readHeaderBlock(InputStream in)
+            throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null)
+            throw new EOFException("Connection closed before the response");
+
+        // HTTP/1.1 200 OK
+        TransportConnection.Response response = new TransportConnection.Response();
+        try {
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12)
+                throw new NumberFormatException();
+
+            response.code = Integer.parseInt(statusLine.substring(9, 12));
+            response.message = statusLine.length() > 13 ? statusLine.substring(13) : "";
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected status line " + statusLine);
+        }
+
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new ProtocolException("Unexpected header " + line);
+
+            response.headers.add(line.substring(0, colon).trim());
+            response.headers.add(line.substring(colon + 1).trim());
+        }
+
+        if (line == null)
+            throw new EOFException("Connection closed in the response headers");
+
+        // HTTP/1.0 connections close unless asked not to
+        if (statusLine.startsWith("HTTP/1.0")) {
+            String connection = response.getHeader("Connection");
+            response.keepAlive = connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+
+        return response;
+    }
+
+    /**
+     * @return the next line without its line break, or null at the end of
+     *         the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+
+                return line.toString();
+            }
+
+            line.append((char) c);
+        }
+
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
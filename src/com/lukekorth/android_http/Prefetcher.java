@@ -0,0 +1,102 @@
+package com.lukekorth.android_http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fills the cache with responses that are about to be needed. Prefetches run
+ * at low priority on the instance's dispatcher and no more than
+ * {@link #MAX_RUNNING} at a time, so the dispatcher always has threads left
+ * for requests the user is waiting on.
+ */
+class Prefetcher {
+
+    static final int MAX_RUNNING = 2;
+
+    private static final ScheduledExecutorService sScheduler = Executors
+            .newSingleThreadScheduledExecutor(new RequestDispatcher.DispatcherThreadFactory());
+
+    private final HttpHelper mHttpHelper;
+
+    // url to cache policy, in the order the urls were asked for
+    private final LinkedHashMap<String, Integer> mPending = new LinkedHashMap<String, Integer>();
+    private int mRunning;
+
+    Prefetcher(HttpHelper httpHelper) {
+        mHttpHelper = httpHelper;
+    }
+
+    synchronized void add(Collection<String> urls, int cache) {
+        for (String url : urls) {
+            // a url that is already waiting keeps its place
+            if (!mPending.containsKey(url))
+                mPending.put(url, cache);
+        }
+
+        startNext();
+    }
+
+    /**
+     * Prefetches {@code urls} now and then every {@code intervalMs},
+     * revalidating what is cached, until the returned future is cancelled.
+     */
+    Future<?> schedule(Collection<String> urls, long intervalMs) {
+        final ArrayList<String> copy = new ArrayList<String>(urls);
+        add(copy, HttpHelper.CACHE);
+
+        return sScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                add(copy, HttpHelper.VALIDATE_CACHE);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Drops prefetches that have not started yet. */
+    synchronized void cancel() {
+        mPending.clear();
+    }
+
+    private synchronized void startNext() {
+        while (mRunning < MAX_RUNNING && !mPending.isEmpty()) {
+            Map.Entry<String, Integer> next = mPending.entrySet().iterator().next();
+            final String url = next.getKey();
+            final int cache = next.getValue();
+            mPending.remove(url);
+            mRunning++;
+
+            final AtomicBoolean ran = new AtomicBoolean();
+            mHttpHelper.enqueue(url, HttpHelper.PRIORITY_LOW, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    ran.set(true);
+                    return mHttpHelper.fetchIntoCache(url, cache);
+                }
+            }, null, new Runnable() {
+                @Override
+                public void run() {
+                    finished(ran.get());
+                }
+            });
+        }
+    }
+
+    /**
+     * Frees the slot of a prefetch that completed, was cancelled or was
+     * rejected. Only a prefetch that ran starts the next one, the others
+     * failed because the dispatcher is shutting down.
+     */
+    private synchronized void finished(boolean ran) {
+        mRunning--;
+        if (ran)
+            startNext();
+    }
+}
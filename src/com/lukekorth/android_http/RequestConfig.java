@@ -0,0 +1,79 @@
+package com.lukekorth.android_http;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The immutable settings every request of an {@link HttpHelper} is made
+ * with. Changing a setting replaces the whole config, so a request reads
+ * one consistent snapshot without any locking.
+ */
+class RequestConfig {
+
+    static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000; // 10 seconds in milliseconds
+    static final int DEFAULT_READ_TIMEOUT = 60 * 1000; // 60 seconds in milliseconds
+
+    static final RequestConfig DEFAULT = new RequestConfig(DEFAULT_CONNECT_TIMEOUT,
+            DEFAULT_READ_TIMEOUT, null, new TreeMap<String, String>(), true, false, false, true,
+            -1, -1, -1, 0, 0, 0, null, null);
+
+    final int connectTimeout;
+    final int readTimeout;
+    final String cookies;
+    final SortedMap<String, String> headers;
+    final boolean writeBehind;
+    final boolean coalesceRequests;
+    final boolean reuseConnections;
+    final boolean compressResponses;
+    final int requestCompressionThreshold;
+    final int maxStale;
+    final int minFresh;
+    final long deadlineMs;
+    final int maxRetries;
+    final int hedgePercentile;
+    final RequestDispatcher dispatcher;
+    final Transport transport;
+
+    /**
+     * Cookies, headers and the transport, the part of a request's identity
+     * set by the config.
+     */
+    final String key;
+
+    RequestConfig(int connectTimeout, int readTimeout, String cookies,
+            SortedMap<String, String> headers, boolean writeBehind, boolean coalesceRequests,
+            boolean reuseConnections, boolean compressResponses, int requestCompressionThreshold,
+            int maxStale, int minFresh, long deadlineMs, int maxRetries, int hedgePercentile,
+            RequestDispatcher dispatcher, Transport transport) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.cookies = cookies;
+        this.headers = Collections.unmodifiableSortedMap(new TreeMap<String, String>(headers));
+        this.writeBehind = writeBehind;
+        this.coalesceRequests = coalesceRequests;
+        this.reuseConnections = reuseConnections;
+        this.compressResponses = compressResponses;
+        this.requestCompressionThreshold = requestCompressionThreshold;
+        this.maxStale = maxStale;
+        this.minFresh = minFresh;
+        this.deadlineMs = deadlineMs;
+        this.maxRetries = maxRetries;
+        this.hedgePercentile = hedgePercentile;
+        this.dispatcher = dispatcher;
+        this.transport = transport;
+
+        StringBuilder key = new StringBuilder();
+        if (cookies != null)
+            key.append("\nCookie: ").append(cookies);
+
+        for (Map.Entry<String, String> header : this.headers.entrySet())
+            key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+
+        if (transport != null)
+            key.append("\nTransport: ").append(System.identityHashCode(transport));
+
+        this.key = key.toString();
+    }
+}
@@ -0,0 +1,220 @@
+package com.lukekorth.android_http;
+
+import android.os.Process;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs requests on a bounded pool of background threads. Requests with a
+ * higher priority are started first and no more than
+ * {@code maxRequestsPerHost} requests to the same host run at once, the rest
+ * wait in priority order until a slot for their host frees up.
+ */
+public class RequestDispatcher {
+
+    public static final int DEFAULT_MAX_REQUESTS = 4;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 2;
+
+    private static RequestDispatcher sDefault;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxRequestsPerHost;
+
+    private final HashMap<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+    private final PriorityQueue<RequestFuture<?>> mWaiting = new PriorityQueue<RequestFuture<?>>();
+
+    public RequestDispatcher() {
+        this(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    public RequestDispatcher(int maxRequests, int maxRequestsPerHost) {
+        if (maxRequests < 1 || maxRequestsPerHost < 1)
+            throw new IllegalArgumentException("maxRequests and maxRequestsPerHost must be > 0");
+
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        mExecutor = new ThreadPoolExecutor(maxRequests, maxRequests, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new DispatcherThreadFactory());
+    }
+
+    public static synchronized RequestDispatcher getDefault() {
+        if (sDefault == null)
+            sDefault = new RequestDispatcher();
+
+        return sDefault;
+    }
+
+    /**
+     * Replaces the dispatcher shared by every HttpHelper that has not been
+     * given one of its own. Requests already queued on the old dispatcher
+     * still run there.
+     */
+    public static synchronized void setDefault(RequestDispatcher dispatcher) {
+        sDefault = dispatcher;
+    }
+
+    public <T> Future<T> enqueue(String url, int priority, Callable<T> request,
+            ResponseCallback<T> callback) {
+        return enqueue(url, priority, request, callback, null);
+    }
+
+    /**
+     * @param finished run on the thread that completes the request once it
+     *            is done, cancelled or rejected.
+     */
+    <T> Future<T> enqueue(String url, int priority, Callable<T> request,
+            ResponseCallback<T> callback, Runnable finished) {
+        RequestFuture<T> future = new RequestFuture<T>(this, getHost(url), priority, request,
+                callback, finished);
+
+        boolean rejected = false;
+        synchronized (this) {
+            if (mExecutor.isShutdown()) {
+                rejected = true;
+            } else if (canRun(future.getHost())) {
+                rejected = !dispatch(future);
+            } else {
+                mWaiting.add(future);
+            }
+        }
+
+        // outside the lock, cancelling runs the request's completion
+        if (rejected)
+            future.cancel(false);
+
+        return future;
+    }
+
+    /**
+     * Cancels every queued and running request and stops the worker threads.
+     * Requests enqueued afterwards are cancelled right away.
+     */
+    public void shutdown() {
+        ArrayList<RequestFuture<?>> waiting;
+        synchronized (this) {
+            waiting = new ArrayList<RequestFuture<?>>(mWaiting);
+            mWaiting.clear();
+        }
+
+        for (RequestFuture<?> future : waiting)
+            future.cancel(true);
+
+        for (Runnable runnable : mExecutor.shutdownNow()) {
+            RequestFuture<?> future = (RequestFuture<?>) runnable;
+            future.cancel(true);
+            // never run, so its slot is freed here
+            finished(future);
+        }
+    }
+
+    /**
+     * Takes a request that was cancelled before it was dispatched off the
+     * waiting list. A dispatched request keeps its slot until
+     * {@link #finished(RequestFuture)}.
+     */
+    synchronized void cancelled(RequestFuture<?> future) {
+        if (!future.mDispatched)
+            mWaiting.remove(future);
+    }
+
+    /**
+     * Frees the host slot of a dispatched request once its thread has
+     * returned from it, a cancelled request may still be blocked in socket
+     * I/O until then.
+     */
+    void finished(RequestFuture<?> future) {
+        RequestFuture<?> rejected = null;
+
+        synchronized (this) {
+            int running = mRunningPerHost.get(future.getHost()) - 1;
+            if (running == 0) {
+                mRunningPerHost.remove(future.getHost());
+            } else {
+                mRunningPerHost.put(future.getHost(), running);
+            }
+
+            Iterator<RequestFuture<?>> iterator = mWaiting.iterator();
+            RequestFuture<?> next = null;
+            while (iterator.hasNext()) {
+                RequestFuture<?> waiting = iterator.next();
+                if (canRun(waiting.getHost()) && (next == null || waiting.compareTo(next) < 0))
+                    next = waiting;
+            }
+
+            if (next != null) {
+                mWaiting.remove(next);
+                if (!dispatch(next))
+                    rejected = next;
+            }
+        }
+
+        if (rejected != null)
+            rejected.cancel(false);
+    }
+
+    private boolean canRun(String host) {
+        Integer running = mRunningPerHost.get(host);
+        return running == null || running < mMaxRequestsPerHost;
+    }
+
+    /**
+     * @return false if the executor has been shut down, the caller has to
+     *         cancel the future then.
+     */
+    private boolean dispatch(RequestFuture<?> future) {
+        Integer running = mRunningPerHost.get(future.getHost());
+        mRunningPerHost.put(future.getHost(), running == null ? 1 : running + 1);
+        future.mDispatched = true;
+
+        try {
+            mExecutor.execute(future);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (running == null)
+                mRunningPerHost.remove(future.getHost());
+            else
+                mRunningPerHost.put(future.getHost(), running);
+            future.mDispatched = false;
+            return false;
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    static class DispatcherThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "android-http #" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
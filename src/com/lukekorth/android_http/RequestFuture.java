@@ -0,0 +1,190 @@
+package com.lukekorth.android_http;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queued request. Connections opened by HttpHelper while the request is
+ * running are attached to it so that cancelling the future disconnects them
+ * right away instead of waiting for the read timeout. Connections opened on
+ * the request's own thread are attached through {@link #current()}, those
+ * opened for it on other threads, like hedged attempts, explicitly.
+ */
+class RequestFuture<T> extends FutureTask<T> implements Comparable<RequestFuture<?>> {
+
+    private static final String TAG = "android-http";
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final ThreadLocal<RequestFuture<?>> CURRENT = new ThreadLocal<RequestFuture<?>>();
+
+    private static Handler sMainHandler;
+
+    private final RequestDispatcher mDispatcher;
+    private final ResponseCallback<T> mCallback;
+    private final Runnable mFinished;
+    private final String mHost;
+    private final int mPriority;
+    private final long mSequence;
+
+    private final CopyOnWriteArrayList<HttpURLConnection> mConnections =
+            new CopyOnWriteArrayList<HttpURLConnection>();
+    boolean mDispatched;
+
+    RequestFuture(RequestDispatcher dispatcher, String host, int priority, Callable<T> request,
+            ResponseCallback<T> callback, Runnable finished) {
+        super(request);
+        mDispatcher = dispatcher;
+        mHost = host;
+        mPriority = priority;
+        mCallback = callback;
+        mFinished = finished;
+        mSequence = SEQUENCE.getAndIncrement();
+    }
+
+    String getHost() {
+        return mHost;
+    }
+
+    /**
+     * @return the request running on the current thread, or null.
+     */
+    static RequestFuture<?> current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attaches a newly opened connection to the request running on the
+     * current thread, if there is one.
+     *
+     * @throws IOException if the request has already been cancelled.
+     */
+    static void attachCurrent(HttpURLConnection urlConnection) throws IOException {
+        RequestFuture<?> current = CURRENT.get();
+        if (current != null)
+            current.attach(urlConnection);
+    }
+
+    /**
+     * Detaches a connection that goes back to the keep-alive pool from the
+     * request running on the current thread, cancelling the request must not
+     * disconnect it any more.
+     */
+    static void detachCurrent(HttpURLConnection urlConnection) {
+        RequestFuture<?> current = CURRENT.get();
+        if (current != null)
+            current.detach(urlConnection);
+    }
+
+    /**
+     * Attaches a connection opened for this request on any thread.
+     *
+     * @throws IOException if the request has already been cancelled.
+     */
+    void attach(HttpURLConnection urlConnection) throws IOException {
+        mConnections.addIfAbsent(urlConnection);
+        if (isCancelled()) {
+            urlConnection.disconnect();
+            throw new IOException("Request was cancelled");
+        }
+    }
+
+    void detach(HttpURLConnection urlConnection) {
+        mConnections.remove(urlConnection);
+    }
+
+    /**
+     * @return true if the request running on the current thread has been
+     *         cancelled.
+     */
+    static boolean isCurrentCancelled() {
+        RequestFuture<?> current = CURRENT.get();
+        return current != null && current.isCancelled();
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        try {
+            super.run();
+        } finally {
+            CURRENT.remove();
+            mConnections.clear();
+            mDispatcher.finished(this);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+        if (cancelled) {
+            for (HttpURLConnection urlConnection : mConnections)
+                urlConnection.disconnect();
+        }
+
+        return cancelled;
+    }
+
+    @Override
+    protected void done() {
+        mDispatcher.cancelled(this);
+        if (mFinished != null)
+            mFinished.run();
+
+        if (mCallback == null || isCancelled())
+            return;
+
+        T response = null;
+        try {
+            response = get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Exception occured while executing request " + e.getCause());
+        } catch (CancellationException e) {
+            return;
+        }
+
+        deliver(response);
+    }
+
+    private void deliver(final T response) {
+        Handler handler = getMainHandler();
+        if (handler == null) {
+            mCallback.onResponse(response);
+            return;
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled())
+                    mCallback.onResponse(response);
+            }
+        });
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (sMainHandler == null && Looper.getMainLooper() != null)
+            sMainHandler = new Handler(Looper.getMainLooper());
+
+        return sMainHandler;
+    }
+
+    @Override
+    public int compareTo(RequestFuture<?> another) {
+        if (mPriority != another.mPriority)
+            return mPriority > another.mPriority ? -1 : 1;
+
+        return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+    }
+}
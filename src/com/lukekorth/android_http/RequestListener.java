@@ -0,0 +1,9 @@
+package com.lukekorth.android_http;
+
+/**
+ * Receives the metrics of every request once it has finished. Called on the
+ * thread that made the request, so implementations should return quickly.
+ */
+public interface RequestListener {
+    public void onRequestFinished(RequestMetrics metrics);
+}
@@ -0,0 +1,266 @@
+package com.lukekorth.android_http;
+
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Timings, sizes and the outcome of a single request. All durations are in
+ * nanoseconds and are 0 for phases the request did not go through.
+ */
+public class RequestMetrics {
+
+    /** The response came from the network. */
+    public static final int OUTCOME_NETWORK = 0;
+    /** The response was served from the cache without a network request. */
+    public static final int OUTCOME_CACHE_HIT = 1;
+    /** The server answered 304 and the body was served from the cache. */
+    public static final int OUTCOME_VALIDATED = 2;
+    /** The network request failed and a cached response was used instead. */
+    public static final int OUTCOME_STALE_FALLBACK = 3;
+    /** No response could be produced. */
+    public static final int OUTCOME_FAILED = 4;
+    /**
+     * The connection dropped part way through a streamed response, after
+     * some of it had already been handed out.
+     */
+    public static final int OUTCOME_PARTIAL = 5;
+    /**
+     * A response was produced but whether it came from the network or the
+     * cache could not be told, the connection could not be inspected.
+     */
+    public static final int OUTCOME_UNKNOWN = 6;
+
+    static final int OUTCOME_COUNT = 7;
+
+    private final String mMethod;
+    private final String mUrl;
+    private final String mHost;
+    private final long mStartNanos;
+    private final int mAttempt;
+    private boolean mHedged;
+
+    private int mOutcome = OUTCOME_FAILED;
+    private int mResponseCode = -1;
+
+    private long mConnectNanos;
+    private long mFirstByteNanos;
+    private long mBodyNanos;
+    private long mParseNanos;
+    private long mDecodeNanos;
+    private long mTotalNanos;
+
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mBodyBytesIn;
+    private long mBodyBytesOut;
+
+    private boolean mConnectionReused;
+    private boolean mStale;
+
+    // 0 until the tracer has been asked, then 1 to trace the request or -1
+    private int mTraced;
+
+    RequestMetrics(String method, String url) {
+        mMethod = method;
+        mUrl = url;
+        mHost = hostOf(url);
+        mStartNanos = System.nanoTime();
+        mAttempt = 1;
+    }
+
+    /**
+     * Metrics for another attempt at the same request, timings still count
+     * from the start of the first attempt.
+     */
+    RequestMetrics(RequestMetrics previous) {
+        mMethod = previous.mMethod;
+        mUrl = previous.mUrl;
+        mHost = previous.mHost;
+        mStartNanos = previous.mStartNanos;
+        mAttempt = previous.mAttempt + 1;
+        mTraced = previous.mTraced;
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getOutcome() {
+        return mOutcome;
+    }
+
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+
+    /** Which attempt produced these metrics, 1 unless the request was retried or hedged. */
+    public int getAttempt() {
+        return mAttempt;
+    }
+
+    /** Whether this attempt was started because an earlier one was slow. */
+    public boolean isHedged() {
+        return mHedged;
+    }
+
+    void setHedged() {
+        mHedged = true;
+    }
+
+    /** Time from the start of the request until the connection was open. */
+    public long getConnectNanos() {
+        return mConnectNanos;
+    }
+
+    /** Time from the start of the request until the response headers arrived. */
+    public long getFirstByteNanos() {
+        return mFirstByteNanos;
+    }
+
+    /** Time spent reading the body, including any parsing done while streaming. */
+    public long getBodyNanos() {
+        return mBodyNanos;
+    }
+
+    /**
+     * Time spent parsing json. Json is parsed while the body streams in, so
+     * this overlaps with {@link #getBodyNanos()}.
+     */
+    public long getParseNanos() {
+        return mParseNanos;
+    }
+
+    /** Time spent decoding a bitmap from the downloaded bytes. */
+    public long getDecodeNanos() {
+        return mDecodeNanos;
+    }
+
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    /** Bytes of the response body as transferred, compressed or not. */
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    /** Bytes of the request body as transferred, compressed or not. */
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    /** Bytes of the response body after it was decompressed. */
+    public long getBodyBytesIn() {
+        return mBodyBytesIn;
+    }
+
+    /** Bytes of the request body before it was compressed. */
+    public long getBodyBytesOut() {
+        return mBodyBytesOut;
+    }
+
+    /**
+     * How many times smaller the response was on the wire, 1 for responses
+     * that were not compressed.
+     */
+    public double getCompressionRatio() {
+        return mBytesIn == 0 ? 1 : (double) mBodyBytesIn / mBytesIn;
+    }
+
+    /** Whether the request skipped connection setup by using a pooled connection. */
+    public boolean isConnectionReused() {
+        return mConnectionReused;
+    }
+
+    /** Whether the response was served from the cache after it had expired. */
+    public boolean isStale() {
+        return mStale;
+    }
+
+    void setStale(boolean stale) {
+        mStale = stale;
+    }
+
+    boolean isTraced(Tracer tracer) {
+        if (mTraced == 0)
+            mTraced = tracer.isSampled(this) ? 1 : -1;
+
+        return mTraced > 0;
+    }
+
+    void connected() {
+        mConnectNanos = System.nanoTime() - mStartNanos;
+    }
+
+    void connected(HttpURLConnection urlConnection) {
+        connected();
+        mConnectionReused = ResponseSources.isConnectionReused(urlConnection);
+    }
+
+    void firstByte(int responseCode) {
+        mFirstByteNanos = System.nanoTime() - mStartNanos;
+        mResponseCode = responseCode;
+    }
+
+    void bodyRead(long nanos, long bytes) {
+        bodyRead(nanos, bytes, bytes);
+    }
+
+    void bodyRead(long nanos, long bytes, long bodyBytes) {
+        mBodyNanos += nanos;
+        mBytesIn += bytes;
+        mBodyBytesIn += bodyBytes;
+    }
+
+    void parsed(long nanos) {
+        mParseNanos += nanos;
+    }
+
+    void decoded(long nanos) {
+        mDecodeNanos += nanos;
+    }
+
+    void sent(long bytes) {
+        sent(bytes, bytes);
+    }
+
+    void sent(long bytes, long bodyBytes) {
+        mBytesOut += bytes;
+        mBodyBytesOut += bodyBytes;
+    }
+
+    void setOutcome(int outcome) {
+        mOutcome = outcome;
+    }
+
+    void finish() {
+        mTotalNanos = System.nanoTime() - mStartNanos;
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mMethod + " " + mUrl + " outcome=" + mOutcome + " code=" + mResponseCode
+                + " attempt=" + mAttempt + (mHedged ? " hedged" : "")
+                + " connect=" + mConnectNanos / 1000000 + "ms firstByte=" + mFirstByteNanos
+                / 1000000 + "ms body=" + mBodyNanos / 1000000 + "ms total=" + mTotalNanos
+                / 1000000 + "ms in=" + mBytesIn + " out=" + mBytesOut + " reused="
+                + mConnectionReused;
+    }
+}
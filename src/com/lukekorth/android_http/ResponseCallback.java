@@ -0,0 +1,5 @@
+package com.lukekorth.android_http;
+
+public interface ResponseCallback<T> {
+    public void onResponse(T response);
+}
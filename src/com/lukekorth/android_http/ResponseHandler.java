@@ -0,0 +1,24 @@
+package com.lukekorth.android_http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Turns the body of a response into a result while the connection is still
+ * open. Returning null, or throwing an IOException, is treated as a failed
+ * request and lets the caller fall back to the cache. Time spent parsing or
+ * decoding is recorded on the request's metrics.
+ */
+interface ResponseHandler<T> {
+
+    /**
+     * Marks handlers that pass results on while they read. Their response
+     * must not be read twice, so it is neither hedged nor retried.
+     */
+    interface Streaming {
+    }
+
+    public T handleResponse(HttpURLConnection urlConnection, InputStream in,
+            RequestMetrics metrics) throws IOException;
+}
@@ -0,0 +1,155 @@
+package com.lukekorth.android_http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+
+/**
+ * Reads response bodies as raw bytes. The working buffer is borrowed from
+ * the {@link BufferPool}, pre-sized from Content-Length when the server sends
+ * one, and text is decoded in one pass with the charset from Content-Type.
+ */
+class ResponseReader {
+
+    static final String DEFAULT_CHARSET = "UTF-8";
+
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+
+    // Content-Length is only trusted this far when sizing the first buffer
+    private static final int MAX_INITIAL_BUFFER_SIZE = 1024 * 1024;
+
+    // text typically compresses four to eight times
+    private static final int COMPRESSION_RATIO_HINT = 4;
+
+    /**
+     * A filled buffer from the pool, {@link #release()} must be called once
+     * the bytes are no longer needed.
+     */
+    static class Body {
+        byte[] bytes;
+        int count;
+
+        void release() {
+            BufferPool.getDefault().returnBuf(bytes);
+            bytes = null;
+        }
+
+        byte[] toByteArray() {
+            byte[] copy = new byte[count];
+            System.arraycopy(bytes, 0, copy, 0, count);
+            return copy;
+        }
+    }
+
+    static Body read(InputStream in, int sizeHint) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+
+        Body body = new Body();
+        body.bytes = pool.getBuf(sizeHint > 0
+                ? Math.min(sizeHint + 1, MAX_INITIAL_BUFFER_SIZE) : DEFAULT_BUFFER_SIZE);
+
+        try {
+            int read;
+            while ((read = in.read(body.bytes, body.count, body.bytes.length - body.count)) != -1) {
+                body.count += read;
+
+                if (body.count == body.bytes.length) {
+                    byte[] larger = pool.getBuf(body.bytes.length * 2);
+                    System.arraycopy(body.bytes, 0, larger, 0, body.count);
+                    pool.returnBuf(body.bytes);
+                    body.bytes = larger;
+                }
+            }
+        } catch (IOException e) {
+            body.release();
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        return body;
+    }
+
+    /**
+     * Reads {@code in} to the end and throws the bytes away.
+     */
+    static void skipAll(InputStream in) throws IOException {
+        byte[] buffer = BufferPool.getDefault().getBuf(DEFAULT_BUFFER_SIZE);
+        try {
+            while (in.read(buffer) != -1) {
+                /* discarded */
+            }
+        } finally {
+            BufferPool.getDefault().returnBuf(buffer);
+        }
+    }
+
+    static byte[] readBytes(InputStream in, int sizeHint) throws IOException {
+        Body body = read(in, sizeHint);
+        try {
+            return body.toByteArray();
+        } finally {
+            body.release();
+        }
+    }
+
+    static String readString(InputStream in, int sizeHint, String charset) throws IOException {
+        Body body = read(in, sizeHint);
+        try {
+            return new String(body.bytes, 0, body.count, charset);
+        } finally {
+            body.release();
+        }
+    }
+
+    static byte[] readBytes(HttpURLConnection urlConnection, InputStream in) throws IOException {
+        return readBytes(in, getSizeHint(urlConnection));
+    }
+
+    static String readString(HttpURLConnection urlConnection, InputStream in) throws IOException {
+        return readString(in, getSizeHint(urlConnection), getCharset(urlConnection));
+    }
+
+    /**
+     * The expected size of the decoded body, Content-Length is the
+     * compressed size when the body is compressed.
+     */
+    static int getSizeHint(HttpURLConnection urlConnection) {
+        int contentLength = urlConnection.getContentLength();
+        if (contentLength > 0 && urlConnection.getContentEncoding() != null)
+            return (int) Math.min((long) contentLength * COMPRESSION_RATIO_HINT,
+                    MAX_INITIAL_BUFFER_SIZE);
+
+        return contentLength;
+    }
+
+    /**
+     * @return the charset parameter of the Content-Type header if it names a
+     *         supported charset, otherwise {@link #DEFAULT_CHARSET}.
+     */
+    static String getCharset(HttpURLConnection urlConnection) {
+        String contentType = urlConnection.getContentType();
+        if (contentType == null)
+            return DEFAULT_CHARSET;
+
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+                String charset = parameter.substring(8).trim();
+                if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\""))
+                    charset = charset.substring(1, charset.length() - 1);
+
+                try {
+                    if (Charset.isSupported(charset))
+                        return charset;
+                } catch (IllegalCharsetNameException e) {
+                    /* fall back to the default charset */
+                }
+            }
+        }
+
+        return DEFAULT_CHARSET;
+    }
+}
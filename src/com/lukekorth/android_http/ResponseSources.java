@@ -0,0 +1,173 @@
+package com.lukekorth.android_http;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+
+/**
+ * Works out whether a response came from the network or the cache. The
+ * bundled HttpResponseCache only exposes process wide counters, so this
+ * reads the response source of the connection's engine directly, along with
+ * whether its connection came from the keep-alive pool. These are private
+ * fields of the cache's HttpURLConnectionImpl and HttpEngine, if they cannot
+ * be found the lookup is not tried again and responses are reported as
+ * {@link RequestMetrics#OUTCOME_UNKNOWN} over a new connection.
+ */
+class ResponseSources {
+
+    private static volatile boolean sUnavailable;
+
+    private static Method sHttpGetEngine;
+    private static Method sHttpsGetEngine;
+    private static Method sHasRecycledConnection;
+    private static Field sResponseSource;
+    private static Field sConnectionReleased;
+
+    /**
+     * Must be called once the response headers have been read and before the
+     * body is, a validated response releases its connection while the
+     * headers are read whereas a network response holds on to it until the
+     * body is consumed.
+     */
+    static int getOutcome(HttpURLConnection urlConnection) {
+        if (urlConnection instanceof TransportConnection)
+            return RequestMetrics.OUTCOME_NETWORK;
+
+        if (sUnavailable)
+            return RequestMetrics.OUTCOME_UNKNOWN;
+
+        try {
+            Object engine = getEngine(urlConnection);
+            if (engine == null)
+                return RequestMetrics.OUTCOME_UNKNOWN;
+
+            Object source = getResponseSource(engine).get(engine);
+            if (source == null)
+                return RequestMetrics.OUTCOME_UNKNOWN;
+
+            String name = ((Enum<?>) source).name();
+            if ("CACHE".equals(name))
+                return RequestMetrics.OUTCOME_CACHE_HIT;
+
+            if ("CONDITIONAL_CACHE".equals(name)
+                    && getConnectionReleased(engine).getBoolean(engine))
+                return RequestMetrics.OUTCOME_VALIDATED;
+
+            return RequestMetrics.OUTCOME_NETWORK;
+        } catch (Exception e) {
+            sUnavailable = true;
+            return RequestMetrics.OUTCOME_UNKNOWN;
+        }
+    }
+
+    /**
+     * Whether the request is using a connection taken from the keep-alive
+     * pool. Must be called after the connection has been opened and before
+     * the response has been read.
+     */
+    static boolean isConnectionReused(HttpURLConnection urlConnection) {
+        if (urlConnection instanceof TransportConnection)
+            return ((TransportConnection) urlConnection).isConnectionReused();
+
+        if (sUnavailable)
+            return false;
+
+        try {
+            Object engine = getEngine(urlConnection);
+            if (engine == null)
+                return false;
+
+            return (Boolean) getHasRecycledConnection(engine).invoke(engine);
+        } catch (Exception e) {
+            sUnavailable = true;
+            return false;
+        }
+    }
+
+    /**
+     * @return null for a connection of another implementation than the one
+     *         the engine was first found on.
+     */
+    private static Object getEngine(HttpURLConnection urlConnection) throws Exception {
+        Method method = getEngineMethod(urlConnection);
+        if (!method.getDeclaringClass().isInstance(urlConnection))
+            return null;
+
+        return method.invoke(urlConnection);
+    }
+
+    private static synchronized Method getHasRecycledConnection(Object engine)
+            throws NoSuchMethodException {
+        if (sHasRecycledConnection == null) {
+            sHasRecycledConnection = findMethod(engine.getClass(), "hasRecycledConnection");
+            sHasRecycledConnection.setAccessible(true);
+        }
+
+        return sHasRecycledConnection;
+    }
+
+    private static synchronized Method getEngineMethod(HttpURLConnection urlConnection)
+            throws NoSuchMethodException {
+        // the https implementation delegates to a plain http one but both
+        // expose the engine
+        boolean https = urlConnection instanceof javax.net.ssl.HttpsURLConnection;
+        Method method = https ? sHttpsGetEngine : sHttpGetEngine;
+
+        if (method == null) {
+            method = findMethod(urlConnection.getClass(), "getHttpEngine");
+            method.setAccessible(true);
+
+            if (https) {
+                sHttpsGetEngine = method;
+            } else {
+                sHttpGetEngine = method;
+            }
+        }
+
+        return method;
+    }
+
+    private static synchronized Field getResponseSource(Object engine)
+            throws NoSuchFieldException {
+        if (sResponseSource == null) {
+            sResponseSource = findField(engine.getClass(), "responseSource");
+            sResponseSource.setAccessible(true);
+        }
+
+        return sResponseSource;
+    }
+
+    private static synchronized Field getConnectionReleased(Object engine)
+            throws NoSuchFieldException {
+        if (sConnectionReleased == null) {
+            sConnectionReleased = findField(engine.getClass(), "connectionReleased");
+            sConnectionReleased.setAccessible(true);
+        }
+
+        return sConnectionReleased;
+    }
+
+    private static Method findMethod(Class<?> type, String name) throws NoSuchMethodException {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredMethod(name);
+            } catch (NoSuchMethodException e) {
+                /* keep looking in the super class */
+            }
+        }
+
+        throw new NoSuchMethodException(name);
+    }
+
+    private static Field findField(Class<?> type, String name) throws NoSuchFieldException {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                /* keep looking in the super class */
+            }
+        }
+
+        throw new NoSuchFieldException(name);
+    }
+}
@@ -0,0 +1,72 @@
+package com.lukekorth.android_http;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.security.cert.CertificateException;
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Decides whether a failed idempotent request is worth another attempt and
+ * how long to wait before it. Delays grow exponentially from
+ * {@link #BASE_DELAY_MS} up to {@link #MAX_DELAY_MS} with full jitter, so
+ * clients that failed together do not retry together.
+ */
+class RetryPolicy {
+
+    static final long BASE_DELAY_MS = 250;
+    static final long MAX_DELAY_MS = 4 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * @param responseCode of the failed attempt, or -1 if no response arrived.
+     */
+    static boolean isRetryable(IOException e, int responseCode) {
+        if (responseCode == 408 || responseCode == 429 || responseCode >= 500)
+            return true;
+
+        if (responseCode != -1)
+            return false;
+
+        if (e instanceof MalformedURLException || e instanceof ProtocolException
+                || e instanceof SSLPeerUnverifiedException)
+            return false;
+
+        // a certificate that is not trusted now will not be trusted later
+        if (e instanceof SSLHandshakeException && e.getCause() instanceof CertificateException)
+            return false;
+
+        return !RequestFuture.isCurrentCancelled();
+    }
+
+    static long getDelay(int retry) {
+        long ceiling = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(retry, 16));
+        synchronized (sRandom) {
+            return (long) (sRandom.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * Sleeps before the next attempt unless that would pass the deadline.
+     *
+     * @return false if there is no time left for another attempt or the
+     *         thread was interrupted.
+     */
+    static boolean backoff(int retry, long deadline) {
+        long delay = getDelay(retry);
+        if (deadline != 0 && System.nanoTime() + delay * 1000000 >= deadline)
+            return false;
+
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.lukekorth.android_http;
+
+/**
+ * Receives dumps of the requests HttpHelper makes. Nothing is built for a
+ * request {@link #isSampled(RequestMetrics)} returns false for, and the
+ * text of an event is only built when {@link Message#build(int)} is called.
+ * Called on the thread making the request.
+ */
+public interface Tracer {
+
+    /** The request headers, traced before the request is sent. */
+    public static final int REQUEST_HEADERS = 0;
+    /** The query string or form body that was sent. */
+    public static final int REQUEST_BODY = 1;
+    /** The response code and headers. */
+    public static final int RESPONSE_HEADERS = 2;
+    /** The parsed response. */
+    public static final int RESPONSE_BODY = 3;
+    /** The start of the body of an error response. */
+    public static final int ERROR_BODY = 4;
+    /** The {@link RequestMetrics}, traced once the request has finished. */
+    public static final int METRICS = 5;
+
+    /**
+     * Decides whether a request is traced, asked once per request.
+     */
+    public boolean isSampled(RequestMetrics request);
+
+    /**
+     * @param message is only valid until this method returns, it may read
+     *            from the request's connection.
+     */
+    public void trace(RequestMetrics request, int event, Message message);
+
+    public interface Message {
+        /**
+         * @return the text of the event, cut off after {@code maxLength}
+         *         characters, or -1 for all of it.
+         */
+        public String build(int maxLength);
+    }
+}
@@ -0,0 +1,90 @@
+package com.lukekorth.android_http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * The {@link Tracer.Message}s HttpHelper traces.
+ */
+class Traces {
+
+    private Traces() {
+    }
+
+    static Tracer.Message requestHeaders(final HttpURLConnection urlConnection) {
+        return new Tracer.Message() {
+            @Override
+            public String build(int maxLength) {
+                return truncate(urlConnection.getRequestProperties().toString(), maxLength);
+            }
+        };
+    }
+
+    static Tracer.Message responseHeaders(final HttpURLConnection urlConnection,
+            final int responseCode) {
+        return new Tracer.Message() {
+            @Override
+            public String build(int maxLength) {
+                return truncate(responseCode + " " + urlConnection.getHeaderFields(), maxLength);
+            }
+        };
+    }
+
+    /**
+     * @param payload is copied up to the cut off if it is a
+     *            {@link CharSequence}, anything else is converted with
+     *            {@link String#valueOf(Object)} when the message is built.
+     */
+    static Tracer.Message payload(final Object payload) {
+        return new Tracer.Message() {
+            @Override
+            public String build(int maxLength) {
+                if (payload instanceof CharSequence)
+                    return truncate((CharSequence) payload, maxLength);
+
+                return truncate(String.valueOf(payload), maxLength);
+            }
+        };
+    }
+
+    /**
+     * Decodes no more of the {@code count} bytes in {@code buffer} than the
+     * message is cut off after.
+     */
+    static Tracer.Message payload(final byte[] buffer, final int count, final String charset) {
+        return new Tracer.Message() {
+            @Override
+            public String build(int maxLength) {
+                // a charset never decodes to more chars than there are bytes
+                char[] chars = new char[maxLength < 0 ? count : Math.min(maxLength, count)];
+                int length = 0;
+                try {
+                    Reader reader = new InputStreamReader(new ByteArrayInputStream(buffer, 0,
+                            count), charset);
+                    int read;
+                    while (length < chars.length
+                            && (read = reader.read(chars, length, chars.length - length)) != -1)
+                        length += read;
+
+                    if (length == maxLength && reader.read() != -1)
+                        return new String(chars) + "... (" + count + " bytes)";
+                } catch (IOException e) {
+                    // not reached for an in memory stream, unless the charset is unsupported
+                }
+
+                return new String(chars, 0, length);
+            }
+        };
+    }
+
+    static String truncate(CharSequence text, int maxLength) {
+        if (maxLength < 0 || text.length() <= maxLength)
+            return text.toString();
+
+        return new StringBuilder(maxLength + 24).append(text, 0, maxLength).append("... (")
+                .append(text.length()).append(" chars)").toString();
+    }
+}
@@ -0,0 +1,17 @@
+package com.lukekorth.android_http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections HttpHelper makes its network requests over. The
+ * connection is configured and used exactly like one returned by
+ * {@link URL#openConnection()}. Only the platform's connections, see
+ * {@link UrlConnectionTransport}, go through the response cache and stream
+ * request bodies, so gets that use the cache, uploads and downloads always
+ * use them whatever the transport.
+ */
+public interface Transport {
+    public HttpURLConnection open(URL url) throws IOException;
+}
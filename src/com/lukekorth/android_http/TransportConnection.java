@@ -0,0 +1,221 @@
+package com.lukekorth.android_http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HttpURLConnection whose exchange is carried out by a {@link Transport}
+ * other than the platform's. The request body is buffered and sent along
+ * with the headers the first time the response is asked for, so HttpHelper
+ * only sends small bodies over it. The response body is handed out the way
+ * the transport reads it, streamed or from memory. Redirects are not
+ * followed.
+ */
+abstract class TransportConnection extends HttpURLConnection {
+
+    /** A response whose headers have been read. */
+    static class Response {
+        int code;
+        String message;
+        // name, value, name, value...
+        final ArrayList<String> headers = new ArrayList<String>();
+        InputStream body;
+        boolean connectionReused;
+        boolean keepAlive = true;
+
+        String getHeader(String name) {
+            for (int i = headers.size() - 2; i >= 0; i -= 2) {
+                if (headers.get(i).equalsIgnoreCase(name))
+                    return headers.get(i + 1);
+            }
+
+            return null;
+        }
+    }
+
+    private Map<String, List<String>> mRequestHeaders;
+    private ByteArrayOutputStream mRequestBody;
+    private Response mResponse;
+
+    protected TransportConnection(URL url) {
+        super(url);
+    }
+
+    /**
+     * Sends the request and waits for its response.
+     *
+     * @param body the request body, or null if there is none.
+     */
+    abstract Response execute(String method, Map<String, List<String>> headers, byte[] body)
+            throws IOException;
+
+    /**
+     * Aborts a request {@link #execute(String, Map, byte[])} is still
+     * waiting on, or whose response body is still being read. May be called
+     * from another thread.
+     */
+    abstract void cancel();
+
+    boolean isConnectionReused() {
+        return mResponse != null && mResponse.connectionReused;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected)
+            return;
+
+        mRequestHeaders = getRequestProperties();
+        connected = true;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput)
+            throw new ProtocolException("setDoOutput(true) was not called");
+
+        if (mResponse != null)
+            throw new ProtocolException("The response has already been read");
+
+        if (method.equals("GET"))
+            method = "POST";
+
+        connect();
+        if (mRequestBody == null)
+            mRequestBody = new ByteArrayOutputStream();
+
+        return mRequestBody;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        Response response = getResponse();
+        if (response.code >= HTTP_BAD_REQUEST)
+            throw new FileNotFoundException(url.toString());
+
+        return response.body;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        Response response = mResponse;
+        if (response == null || response.code < HTTP_BAD_REQUEST)
+            return null;
+
+        return response.body;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return getResponse().code;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return getResponse().message;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        Response response = getResponseOrNull();
+        if (response == null)
+            return null;
+
+        if (name == null)
+            return getStatusLine(response);
+
+        return response.getHeader(name);
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        Response response = getResponseOrNull();
+        if (response == null)
+            return null;
+
+        if (n == 0)
+            return getStatusLine(response);
+
+        int index = (n - 1) * 2 + 1;
+        return index < response.headers.size() ? response.headers.get(index) : null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        Response response = getResponseOrNull();
+        if (response == null || n == 0)
+            return null;
+
+        int index = (n - 1) * 2;
+        return index < response.headers.size() ? response.headers.get(index) : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        Response response = getResponseOrNull();
+        if (response == null)
+            return Collections.emptyMap();
+
+        LinkedHashMap<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+        fields.put(null, Collections.singletonList(getStatusLine(response)));
+        for (int i = 0; i < response.headers.size(); i += 2) {
+            List<String> values = fields.get(response.headers.get(i));
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                fields.put(response.headers.get(i), values);
+            }
+
+            values.add(response.headers.get(i + 1));
+        }
+
+        return Collections.unmodifiableMap(fields);
+    }
+
+    @Override
+    public void disconnect() {
+        cancel();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    private Response getResponse() throws IOException {
+        if (mResponse == null) {
+            connect();
+
+            byte[] body = mRequestBody != null ? mRequestBody.toByteArray() : null;
+            Response response = execute(method, mRequestHeaders, body);
+            responseCode = response.code;
+            responseMessage = response.message;
+            mResponse = response;
+        }
+
+        return mResponse;
+    }
+
+    private Response getResponseOrNull() {
+        try {
+            return getResponse();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String getStatusLine(Response response) {
+        return "HTTP/1.1 " + response.code
+                + (response.message != null ? " " + response.message : "");
+    }
+}
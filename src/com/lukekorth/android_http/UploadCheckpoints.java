@@ -0,0 +1,132 @@
+package com.lukekorth.android_http;
+
+import android.util.Log;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remembers how many bytes of a resumable upload the server has confirmed so
+ * an upload can pick up where it left off after a failure or a process
+ * restart. Entries are removed once an upload completes. Checkpoints live in
+ * a {@link DiskLruCache} capped at a fixed size, so those of abandoned
+ * uploads are evicted, and are ignored after {@link #MAX_AGE_MS} by
+ * default, servers do not keep incomplete uploads around forever.
+ */
+class UploadCheckpoints {
+
+    private static final String TAG = "android-http";
+
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_KEY = 0;
+    private static final int VALUE_OFFSET = 1;
+    private static final int VALUE_UPDATED = 2;
+    private static final int VALUE_COUNT = 3;
+
+    static final long DEFAULT_MAX_SIZE = 64 * 1024; // 64 KiB
+    static final long MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L; // a week
+
+    private final DiskLruCache mDiskCache;
+    private final long mMaxAge;
+
+    UploadCheckpoints(File directory, long maxSize) {
+        this(directory, maxSize, MAX_AGE_MS);
+    }
+
+    /**
+     * Opens the checkpoints in {@code directory}. If the directory cannot be
+     * used uploads are not resumed across failures.
+     */
+    UploadCheckpoints(File directory, long maxSize, long maxAge) {
+        mMaxAge = maxAge;
+
+        DiskLruCache diskCache = null;
+        try {
+            diskCache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, maxSize);
+        } catch (IOException e) {
+            Log.w(TAG, "IOException occured while opening upload checkpoints " + e);
+        }
+
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * The key changes if the file is modified, so a stale checkpoint is never
+     * applied to different content.
+     */
+    static String key(String url, File file) {
+        return url + "\n" + file.getAbsolutePath() + "\n" + file.length() + "\n"
+                + file.lastModified();
+    }
+
+    /**
+     * @return the confirmed offset or -1 if no upload has been started, or
+     *         its checkpoint has expired.
+     */
+    synchronized long get(String key) {
+        if (mDiskCache == null)
+            return -1;
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskCache.get(ValidatorStore.key(key));
+            if (snapshot == null || !key.equals(snapshot.getString(VALUE_KEY)))
+                return -1;
+
+            long updated = Long.parseLong(snapshot.getString(VALUE_UPDATED));
+            if (System.currentTimeMillis() - updated > mMaxAge) {
+                snapshot.close();
+                snapshot = null;
+                remove(key);
+                return -1;
+            }
+
+            return Long.parseLong(snapshot.getString(VALUE_OFFSET));
+        } catch (IOException e) {
+            Log.w(TAG, "IOException occured while reading upload checkpoint " + e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Corrupt upload checkpoint " + e);
+        } finally {
+            if (snapshot != null)
+                snapshot.close();
+        }
+
+        return -1;
+    }
+
+    synchronized void put(String key, long offset) {
+        if (mDiskCache == null)
+            return;
+
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskCache.edit(ValidatorStore.key(key));
+            if (editor == null)
+                return;
+
+            editor.set(VALUE_KEY, key);
+            editor.set(VALUE_OFFSET, Long.toString(offset));
+            editor.set(VALUE_UPDATED, Long.toString(System.currentTimeMillis()));
+            editor.commit();
+            editor = null;
+        } catch (IOException e) {
+            Log.w(TAG, "IOException occured while writing upload checkpoint " + e);
+        } finally {
+            if (editor != null)
+                editor.abortUnlessCommitted();
+        }
+    }
+
+    synchronized void remove(String key) {
+        if (mDiskCache == null)
+            return;
+
+        try {
+            mDiskCache.remove(ValidatorStore.key(key));
+        } catch (IOException e) {
+            Log.w(TAG, "IOException occured while removing upload checkpoint " + e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.lukekorth.android_http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The default transport, the platform's HttpURLConnection along with its
+ * response cache and keep-alive pool.
+ */
+public class UrlConnectionTransport implements Transport {
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+}
@@ -0,0 +1,207 @@
+package com.lukekorth.android_http;
+
+import android.util.Log;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stores the ETag and Last-Modified validators of downloads, keyed by url,
+ * so an interrupted download can be resumed with If-Range. Cached responses
+ * are revalidated with the validators the response cache keeps itself.
+ * Entries live in a {@link DiskLruCache} capped at a fixed size so the least
+ * recently used urls are evicted, with a small in memory LRU in front of it
+ * for the urls that are requested over and over. Lookups and writes cost the
+ * same no matter how many urls are stored.
+ */
+class ValidatorStore {
+
+    private static final String TAG = "android-http";
+
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_URL = 0;
+    private static final int VALUE_ETAG = 1;
+    private static final int VALUE_LAST_MODIFIED = 2;
+    private static final int VALUE_COUNT = 3;
+
+    private static final int MEMORY_ENTRIES = 64;
+
+    static final long DEFAULT_MAX_SIZE = 512 * 1024; // 512 KiB
+
+    static class Validators {
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final Validators NONE = new Validators(null, null);
+
+    private DiskLruCache mDiskCache;
+
+    private final LinkedHashMap<String, Validators> mMemoryCache = new LinkedHashMap<String, Validators>(
+            MEMORY_ENTRIES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+
+    /**
+     * Opens the store in {@code directory}. If the directory cannot be used
+     * validators are kept in memory only.
+     */
+    ValidatorStore(File directory, long maxSize) {
+        mDiskCache = open(directory, maxSize);
+    }
+
+    private static DiskLruCache open(File directory, long maxSize) {
+        try {
+            return DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, maxSize);
+        } catch (IOException e) {
+            Log.w(TAG, "IOException occured while opening validator store " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the stored validators, never null. Either field may be null.
+     */
+    synchronized Validators get(String url) {
+        Validators validators = mMemoryCache.get(url);
+        if (validators != null)
+            return validators;
+
+        validators = NONE;
+        if (mDiskCache != null) {
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = mDiskCache.get(key(url));
+                if (snapshot != null && url.equals(snapshot.getString(VALUE_URL))) {
+                    validators = new Validators(emptyToNull(snapshot.getString(VALUE_ETAG)),
+                            emptyToNull(snapshot.getString(VALUE_LAST_MODIFIED)));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "IOException occured while reading validators " + e);
+            } finally {
+                if (snapshot != null)
+                    snapshot.close();
+            }
+        }
+
+        mMemoryCache.put(url, validators);
+        return validators;
+    }
+
+    synchronized void put(String url, String etag, String lastModified) {
+        if (etag == null && lastModified == null) {
+            remove(url);
+            return;
+        }
+
+        mMemoryCache.put(url, new Validators(etag, lastModified));
+
+        if (mDiskCache == null)
+            return;
+
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskCache.edit(key(url));
+            if (editor == null)
+                return;
+
+            editor.set(VALUE_URL, url);
+            editor.set(VALUE_ETAG, etag == null ? "" : etag);
+            editor.set(VALUE_LAST_MODIFIED, lastModified == null ? "" : lastModified);
+            editor.commit();
+            editor = null;
+        } catch (IOException e) {
+            Log.w(TAG, "IOException occured while writing validators " + e);
+        } finally {
+            if (editor != null)
+                editor.abortUnlessCommitted();
+        }
+    }
+
+    synchronized void remove(String url) {
+        mMemoryCache.put(url, NONE);
+
+        if (mDiskCache != null) {
+            try {
+                mDiskCache.remove(key(url));
+            } catch (IOException e) {
+                Log.w(TAG, "IOException occured while removing validators " + e);
+            }
+        }
+    }
+
+    synchronized void flush() {
+        if (mDiskCache != null) {
+            try {
+                mDiskCache.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "IOException occured while flushing validators " + e);
+            }
+        }
+    }
+
+    /**
+     * Removes every stored validator.
+     */
+    synchronized void clear() {
+        mMemoryCache.clear();
+
+        if (mDiskCache != null) {
+            File directory = mDiskCache.getDirectory();
+            long maxSize = mDiskCache.getMaxSize();
+
+            try {
+                mDiskCache.delete();
+            } catch (IOException e) {
+                Log.w(TAG, "IOException occured while clearing validators " + e);
+            }
+
+            // delete() closes the cache, open a fresh one so the store stays
+            // usable
+            mDiskCache = open(directory, maxSize);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    /**
+     * @return the MD5 of {@code url} in hex, a valid {@link DiskLruCache} key.
+     */
+    static String key(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class CacheWriterTest {
+
+    private static final String URL = "http://example.com/file";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void writesPendingValidatorsInTheBackground() throws Exception {
+        File directory = mFolder.newFolder();
+        CacheWriter writer = new CacheWriter(new ValidatorStore(directory,
+                ValidatorStore.DEFAULT_MAX_SIZE));
+        writer.putValidators(URL, "\"a\"", "Mon, 01 Jan 2024 00:00:00 GMT");
+
+        // visible right away, but not on disk yet
+        assertEquals("\"a\"", writer.getValidators(URL).etag);
+        assertNull(stored(directory).etag);
+
+        long deadline = System.currentTimeMillis() + CacheWriter.MAX_DELAY_MS + 3000;
+        while (stored(directory).etag == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+
+        ValidatorStore.Validators validators = stored(directory);
+        assertEquals("\"a\"", validators.etag);
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", validators.lastModified);
+    }
+
+    @Test
+    public void flushWritesToDiskBeforeReturning() throws Exception {
+        File directory = mFolder.newFolder();
+        CacheWriter writer = new CacheWriter(new ValidatorStore(directory,
+                ValidatorStore.DEFAULT_MAX_SIZE));
+        writer.putValidators(URL, "\"a\"", null);
+        writer.putValidators(URL, "\"b\"", null);
+        writer.flush();
+
+        assertEquals("\"b\"", stored(directory).etag);
+        assertEquals("\"b\"", writer.getValidators(URL).etag);
+    }
+
+    /** Reads the validators the way a new process would, from disk. */
+    private static ValidatorStore.Validators stored(File directory) {
+        return new ValidatorStore(directory, ValidatorStore.DEFAULT_MAX_SIZE).get(URL);
+    }
+}
@@ -0,0 +1,157 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class CoalescingTest {
+
+    private static final int FOLLOWERS = 3;
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final AtomicInteger mStalled = new AtomicInteger();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+
+    static class Item {
+        int id;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                // only the first request is held up
+                if (mStalled.getAndIncrement() == 0) {
+                    try {
+                        mRelease.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                }
+
+                // the JDK's connection silently sends a get again when a
+                // kept-alive one is disconnected under it
+                exchange.getResponseHeaders().set("Connection", "close");
+                TestServer.send(exchange, 200, "{\"id\":1}".getBytes("UTF-8"));
+            }
+        });
+        mHttp = new HttpHelper.Builder(RuntimeEnvironment.application).build();
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mExecutor.shutdownNow();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void doesNotCoalesceByDefault() throws Exception {
+        List<Future<Item>> items = getConcurrently(mHttp, "/item");
+        mRelease.countDown();
+
+        Item first = items.get(0).get(5, TimeUnit.SECONDS);
+        for (int i = 1; i < items.size(); i++)
+            assertNotSame(first, items.get(i).get(5, TimeUnit.SECONDS));
+        assertEquals(FOLLOWERS + 1, mServer.requests().size());
+    }
+
+    @Test
+    public void followersShareTheLeadersResult() throws Exception {
+        HttpHelper http = mHttp.newBuilder().setRequestCoalescing(true).build();
+        List<Future<Item>> items = getConcurrently(http, "/item");
+        mRelease.countDown();
+
+        Item first = items.get(0).get(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        for (int i = 1; i < items.size(); i++)
+            assertSame(first, items.get(i).get(5, TimeUnit.SECONDS));
+        assertEquals(1, mServer.requests().size());
+    }
+
+    @Test
+    public void followersRequestAgainWhenTheLeaderIsCancelled() throws Exception {
+        final HttpHelper http = mHttp.newBuilder().setRequestCoalescing(true).build();
+        Future<Item> leader = http.getAsync(mServer.url("/item"), Item.class,
+                HttpHelper.NO_CACHE, HttpHelper.PRIORITY_NORMAL, null);
+        awaitRequests(1);
+
+        Future<Item> follower = mExecutor.submit(new Callable<Item>() {
+            @Override
+            public Item call() {
+                return http.get(mServer.url("/item"), Item.class, HttpHelper.NO_CACHE);
+            }
+        });
+        // let the follower join the leader's request
+        Thread.sleep(200);
+        // waiting on the leader rather than on a request of its own
+        assertFalse(follower.isDone());
+        assertTrue(leader.cancel(true));
+
+        Item item = follower.get(5, TimeUnit.SECONDS);
+        assertNotNull(item);
+        assertEquals(1, item.id);
+        assertEquals(2, mServer.requests().size());
+    }
+
+    private List<Future<Item>> getConcurrently(final HttpHelper http, final String path)
+            throws InterruptedException {
+        List<Future<Item>> items = new ArrayList<Future<Item>>();
+        for (int i = 0; i <= FOLLOWERS; i++) {
+            items.add(mExecutor.submit(new Callable<Item>() {
+                @Override
+                public Item call() {
+                    return http.get(mServer.url(path), Item.class, HttpHelper.NO_CACHE);
+                }
+            }));
+
+            // the first request is the leader, the others arrive while it
+            // is held up
+            if (i == 0)
+                awaitRequests(1);
+        }
+        Thread.sleep(200);
+
+        return items;
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mServer.requests().size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(count, mServer.requests().size());
+    }
+}
@@ -0,0 +1,138 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ContentEncodingsTest {
+
+    private static final String BODY = "{\"id\":1,\"name\":\"compressed\"}";
+    private static final int THRESHOLD = 64;
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+
+    static class Item {
+        int id;
+        String name;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                byte[] body = BODY.getBytes("UTF-8");
+                if (request.path.equals("/gzip")) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    body = gzip(body);
+                } else if (request.path.equals("/zlib")) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "deflate");
+                    body = deflate(body, false);
+                } else if (request.path.equals("/raw-deflate")) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "deflate");
+                    body = deflate(body, true);
+                }
+
+                TestServer.send(exchange, 200, body);
+            }
+        });
+
+        mHttp = new HttpHelper.Builder(RuntimeEnvironment.application)
+                .setRequestCompressionThreshold(THRESHOLD).build();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void decodesGzipResponses() {
+        assertDecoded("/gzip");
+    }
+
+    @Test
+    public void decodesZlibDeflateResponses() {
+        assertDecoded("/zlib");
+    }
+
+    @Test
+    public void decodesRawDeflateResponses() {
+        assertDecoded("/raw-deflate");
+    }
+
+    @Test
+    public void sendsSmallRequestBodiesUnencoded() throws Exception {
+        String params = "a=1&b=2";
+        mHttp.post(mServer.url("/post"), params);
+
+        TestServer.Request request = mServer.requests().get(0);
+        assertNull(request.header("Content-Encoding"));
+        assertArrayEquals(params.getBytes("UTF-8"), request.body);
+    }
+
+    @Test
+    public void gzipsRequestBodiesFromTheThreshold() throws Exception {
+        StringBuilder params = new StringBuilder("a=");
+        while (params.length() < THRESHOLD)
+            params.append('x');
+        mHttp.post(mServer.url("/post"), params.toString());
+
+        TestServer.Request request = mServer.requests().get(0);
+        assertEquals("gzip", request.header("Content-Encoding"));
+        assertArrayEquals(params.toString().getBytes("UTF-8"),
+                TestServer.readAll(new GZIPInputStream(new ByteArrayInputStream(request.body))));
+    }
+
+    private void assertDecoded(String path) {
+        Item item = mHttp.get(mServer.url(path), Item.class, HttpHelper.NO_CACHE);
+
+        assertEquals(1, item.id);
+        assertEquals("compressed", item.name);
+        assertEquals(ContentEncodings.ACCEPT_ENCODING,
+                mServer.requests().get(0).header("Accept-Encoding"));
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(body);
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] body, boolean raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+        out.write(body);
+        out.close();
+        deflater.end();
+
+        return bytes.toByteArray();
+    }
+}
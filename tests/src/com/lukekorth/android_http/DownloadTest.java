@@ -0,0 +1,277 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class DownloadTest {
+
+    private static final int LENGTH = 64 * 1024;
+    private static final int CUT = 20 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+    private File mFile;
+    private File mPartial;
+    private String mUrl;
+
+    /**
+     * Serves {@code data} with an ETag and honours Range and If-Range, the
+     * next response stops after {@code cut} bytes if it is set.
+     */
+    private static class ResourceResponder implements TestServer.Responder {
+        volatile byte[] data;
+        volatile String etag;
+        volatile int cut = -1;
+
+        ResourceResponder(byte[] data, String etag) {
+            this.data = data;
+            this.etag = etag;
+        }
+
+        @Override
+        public void respond(TestServer.Request request, HttpExchange exchange)
+                throws IOException {
+            exchange.getResponseHeaders().set("ETag", etag);
+
+            String range = request.header("Range");
+            if (range != null && etag.equals(request.header("If-Range"))) {
+                int start = Integer.parseInt(range.substring(6, range.indexOf('-')));
+                if (start >= data.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+                    TestServer.send(exchange, 416, new byte[0]);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (data.length - 1) + "/" + data.length);
+                send(exchange, 206, copyOfRange(data, start, data.length));
+            } else {
+                send(exchange, 200, data);
+            }
+        }
+
+        private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+            int cut = this.cut;
+            this.cut = -1;
+            if (cut < 0) {
+                TestServer.send(exchange, status, body);
+                return;
+            }
+
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body, 0, cut);
+            out.flush();
+            // the server drops the connection when the exchange is closed short
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mHttp = new HttpHelper(RuntimeEnvironment.application);
+        mFile = new File(mFolder.getRoot(), "download");
+        mPartial = new File(mFolder.getRoot(), "download.part");
+        mUrl = mServer.url("/file");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void resumesWithPartialContent() throws IOException {
+        byte[] data = data(LENGTH, 1);
+        interrupted(data, "\"v1\"");
+
+        assertTrue(mHttp.download(mUrl, mFile, null));
+
+        TestServer.Request resume = last();
+        assertEquals("bytes=" + CUT + "-", resume.header("Range"));
+        assertEquals("\"v1\"", resume.header("If-Range"));
+        assertArrayEquals(data, contents(mFile));
+        assertFalse(mPartial.exists());
+        assertEquals(2, mServer.requests().size());
+    }
+
+    @Test
+    public void startsOverWhenTheServerSendsEverything() throws IOException {
+        final byte[] data = data(LENGTH, 1);
+        interrupted(data, "\"v1\"");
+        // a server without range support answers with the whole resource
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                TestServer.send(exchange, 200, data);
+            }
+        });
+
+        assertTrue(mHttp.download(mUrl, mFile, null));
+        assertArrayEquals(data, contents(mFile));
+    }
+
+    @Test
+    public void downloadsAChangedResourceAgain() throws IOException {
+        ResourceResponder responder = interrupted(data(LENGTH, 1), "\"v1\"");
+        byte[] changed = data(LENGTH + 100, 7);
+        responder.data = changed;
+        responder.etag = "\"v2\"";
+
+        assertTrue(mHttp.download(mUrl, mFile, null));
+
+        assertEquals("\"v1\"", last().header("If-Range"));
+        assertArrayEquals(changed, contents(mFile));
+    }
+
+    @Test
+    public void finishesWhenNothingIsLeft() throws IOException {
+        byte[] data = data(LENGTH, 1);
+        ResourceResponder responder = interrupted(data, "\"v1\"");
+        // the resource was exactly what is on disk already
+        responder.data = copyOfRange(data, 0, CUT);
+
+        assertTrue(mHttp.download(mUrl, mFile, null));
+        assertArrayEquals(copyOfRange(data, 0, CUT), contents(mFile));
+    }
+
+    @Test
+    public void discardsAPartialFileLongerThanTheResource() throws IOException {
+        byte[] data = data(LENGTH, 1);
+        ResourceResponder responder = interrupted(data, "\"v1\"");
+        responder.data = copyOfRange(data, 0, CUT / 2);
+
+        assertFalse(mHttp.download(mUrl, mFile, null));
+        assertFalse(mPartial.exists());
+
+        assertTrue(mHttp.download(mUrl, mFile, null));
+        assertNull(last().header("Range"));
+        assertArrayEquals(copyOfRange(data, 0, CUT / 2), contents(mFile));
+    }
+
+    @Test
+    public void discardsAMismatchedRange() throws IOException {
+        final byte[] data = data(LENGTH, 1);
+        ResourceResponder responder = interrupted(data, "\"v1\"");
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes 0-" + (data.length - 1) + "/" + data.length);
+                TestServer.send(exchange, 206, data);
+            }
+        });
+
+        assertFalse(mHttp.download(mUrl, mFile, null));
+        assertFalse(mPartial.exists());
+
+        mServer.setResponder(responder);
+        assertTrue(mHttp.download(mUrl, mFile, null));
+        assertNull(last().header("Range"));
+        assertArrayEquals(data, contents(mFile));
+    }
+
+    @Test
+    public void keepsProgressOnServerErrors() throws IOException {
+        byte[] data = data(LENGTH, 1);
+        ResourceResponder responder = interrupted(data, "\"v1\"");
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                TestServer.send(exchange, 503, new byte[0]);
+            }
+        });
+
+        assertFalse(mHttp.download(mUrl, mFile, null));
+        assertEquals(CUT, mPartial.length());
+
+        mServer.setResponder(responder);
+        assertTrue(mHttp.download(mUrl, mFile, null));
+        assertEquals("bytes=" + CUT + "-", last().header("Range"));
+        assertArrayEquals(data, contents(mFile));
+    }
+
+    @Test
+    public void downloadsOverThePlatformWhateverTheTransport() throws IOException {
+        byte[] data = data(LENGTH, 1);
+        mServer.setResponder(new ResourceResponder(data, "\"v1\""));
+        // the loopback transport would answer with a 404
+        HttpHelper http = new HttpHelper.Builder(RuntimeEnvironment.application)
+                .setTransport(new LoopbackTransport()).build();
+
+        assertTrue(http.download(mUrl, mFile, null));
+        assertArrayEquals(data, contents(mFile));
+    }
+
+    /**
+     * Runs a download that is cut off after {@link #CUT} bytes and leaves
+     * its responder installed.
+     */
+    private ResourceResponder interrupted(byte[] data, String etag) {
+        ResourceResponder responder = new ResourceResponder(data, etag);
+        responder.cut = CUT;
+        mServer.setResponder(responder);
+
+        assertFalse(mHttp.download(mUrl, mFile, null));
+        assertEquals(CUT, mPartial.length());
+        assertFalse(mFile.exists());
+        return responder;
+    }
+
+    private TestServer.Request last() {
+        List<TestServer.Request> requests = mServer.requests();
+        return requests.get(requests.size() - 1);
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * seed);
+
+        return data;
+    }
+
+    private static byte[] copyOfRange(byte[] data, int from, int to) {
+        byte[] copy = new byte[to - from];
+        System.arraycopy(data, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    private static byte[] contents(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return TestServer.readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+
+public class FormEncoderTest {
+
+    private static final String[] VALUES = {
+            "",
+            "plain",
+            "a b  c",
+            "!#$&'()+,/:;=?@[]",
+            "\"%<>\\^`{|}",
+            "*._-~",
+            "\t\r\n\u0000\u007f",
+            "héllo wörld",
+            "ÿĀ߿ࠀ",
+            "日本語",
+            "￿",
+            "emoji \uD83D\uDE00 \uD834\uDD1E",
+            "unpaired \uD800 \uDC00",
+    };
+
+    @Test
+    public void encodesLikeUrlEncoder() throws Exception {
+        for (String value : VALUES)
+            assertEquals(value, URLEncoder.encode(value, "UTF-8"), encode(value));
+    }
+
+    @Test
+    public void joinsPairs() throws Exception {
+        FormEncoder encoder = new FormEncoder(16);
+        for (String value : VALUES)
+            encoder.add(value, value);
+
+        StringBuilder expected = new StringBuilder();
+        for (String value : VALUES) {
+            if (expected.length() > 0)
+                expected.append('&');
+            String encoded = URLEncoder.encode(value, "UTF-8");
+            expected.append(encoded).append('=').append(encoded);
+        }
+
+        assertEquals(expected.toString(), encoder.toString());
+        assertEquals(expected.length(), encoder.size());
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        FormEncoder encoder = new FormEncoder().add("a", "1");
+        encoder.reset().add("b", null);
+
+        assertEquals("b=", encoder.toString());
+    }
+
+    private static String encode(String value) {
+        FormEncoder encoder = new FormEncoder().add("", value);
+        // drop the '=' between the empty name and the value
+        return encoder.toString().substring(1);
+    }
+}
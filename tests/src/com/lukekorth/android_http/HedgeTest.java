@@ -0,0 +1,163 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class HedgeTest {
+
+    private static final int WARM_UP = 25;
+    private static final int SLOW_MS = 500;
+
+    private final List<Throwable> mUncaught = new ArrayList<Throwable>();
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+    private Thread.UncaughtExceptionHandler mDefaultHandler;
+
+    static class Item {
+        int id;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                try {
+                    if (request.path.startsWith("/slow"))
+                        Thread.sleep(SLOW_MS);
+                    else if (request.path.startsWith("/stall"))
+                        mRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+
+                // the JDK's connection silently sends a get again when a
+                // kept-alive one is disconnected under it
+                exchange.getResponseHeaders().set("Connection", "close");
+
+                if (request.path.endsWith("array"))
+                    TestServer.send(exchange, 200, "[1,2,3]".getBytes("UTF-8"));
+                else if (request.path.endsWith("string"))
+                    TestServer.send(exchange, 200, "\"not an item\"".getBytes("UTF-8"));
+                else
+                    TestServer.send(exchange, 200, "{\"id\":1}".getBytes("UTF-8"));
+            }
+        });
+
+        mHttp = new HttpHelper.Builder(RuntimeEnvironment.application).setHedging(50).build();
+
+        mDefaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                synchronized (mUncaught) {
+                    mUncaught.add(e);
+                }
+            }
+        });
+
+        // hedging waits for enough history of the host
+        for (int i = 0; i < WARM_UP; i++)
+            mHttp.get(mServer.url("/fast?" + i), Item.class, HttpHelper.NO_CACHE);
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        HttpHelper.setRequestListener(null);
+        Thread.setDefaultUncaughtExceptionHandler(mDefaultHandler);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void hedgesSlowRequests() {
+        Item item = mHttp.get(mServer.url("/slow"), Item.class, HttpHelper.NO_CACHE);
+
+        assertEquals(1, item.id);
+        assertEquals(2, requests("/slow"));
+    }
+
+    @Test
+    public void reportsParseErrorsOfHedgedAttemptsOnTheCaller() throws InterruptedException {
+        assertNull(mHttp.get(mServer.url("/slow-string"), Item.class, HttpHelper.NO_CACHE));
+        assertEquals(2, requests("/slow-string"));
+
+        Thread.sleep(100);
+        synchronized (mUncaught) {
+            assertEquals(new ArrayList<Throwable>(), mUncaught);
+        }
+    }
+
+    @Test
+    public void doesNotHedgeStreamedResponses() {
+        final List<Integer> elements = new ArrayList<Integer>();
+        int count = mHttp.getJsonArray(mServer.url("/slow-array"), Integer.class,
+                HttpHelper.NO_CACHE, new JsonElementCallback<Integer>() {
+                    @Override
+                    public void onElement(Integer element) {
+                        elements.add(element);
+                    }
+                });
+
+        assertEquals(3, count);
+        assertEquals(3, elements.size());
+        assertEquals(1, requests("/slow-array"));
+    }
+
+    @Test
+    public void cancellingDisconnectsHedgedAttempts() throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        HttpHelper.setRequestListener(new RequestListener() {
+            @Override
+            public void onRequestFinished(RequestMetrics metrics) {
+                if (metrics.getUrl().endsWith("/stall"))
+                    finished.countDown();
+            }
+        });
+
+        Future<Item> future = mHttp.getAsync(mServer.url("/stall"), Item.class,
+                HttpHelper.NO_CACHE, HttpHelper.PRIORITY_NORMAL, null);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests("/stall") < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, requests("/stall"));
+
+        assertTrue(future.cancel(false));
+        assertTrue(finished.await(2, TimeUnit.SECONDS));
+    }
+
+    private int requests(String path) {
+        int count = 0;
+        for (TestServer.Request request : mServer.requests()) {
+            if (request.path.equals(path))
+                count++;
+        }
+
+        return count;
+    }
+}
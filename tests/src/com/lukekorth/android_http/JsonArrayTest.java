@@ -0,0 +1,103 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class JsonArrayTest {
+
+    private RawServer mServer;
+    private final List<RequestMetrics> mFinished = new CopyOnWriteArrayList<RequestMetrics>();
+
+    @After
+    public void tearDown() throws IOException {
+        HttpHelper.setRequestListener(null);
+        if (mServer != null)
+            mServer.shutdown();
+    }
+
+    @Test
+    public void deliversEveryElement() throws Exception {
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                connection.readRequest();
+                connection.respond("[1,2,3]");
+            }
+        });
+
+        List<Integer> elements = new ArrayList<Integer>();
+        assertEquals(3, getJsonArray(elements));
+        assertEquals(Arrays.asList(1, 2, 3), elements);
+        assertEquals(RequestMetrics.OUTCOME_NETWORK, mFinished.get(0).getOutcome());
+    }
+
+    @Test
+    public void countsTheElementsDeliveredBeforeTheConnectionDrops() throws Exception {
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                connection.readRequest();
+                // announces more than is sent before the connection closes
+                connection.write("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n[1,2,3,");
+                connection.close();
+            }
+        });
+
+        List<Integer> elements = new ArrayList<Integer>();
+        assertEquals(3, getJsonArray(elements));
+        assertEquals(Arrays.asList(1, 2, 3), elements);
+        assertEquals(1, mFinished.size());
+        assertEquals(RequestMetrics.OUTCOME_PARTIAL, mFinished.get(0).getOutcome());
+        // not sent again, the elements would be delivered twice
+        assertEquals(1, mServer.connections());
+    }
+
+    @Test
+    public void failsWhenNothingWasDelivered() throws Exception {
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                connection.readRequest();
+                connection.write("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n[");
+                connection.close();
+            }
+        });
+
+        List<Integer> elements = new ArrayList<Integer>();
+        assertEquals(-1, getJsonArray(elements));
+        assertEquals(0, elements.size());
+        assertEquals(RequestMetrics.OUTCOME_FAILED, mFinished.get(0).getOutcome());
+    }
+
+    private int getJsonArray(final List<Integer> elements) {
+        HttpHelper.setRequestListener(new RequestListener() {
+            @Override
+            public void onRequestFinished(RequestMetrics metrics) {
+                mFinished.add(metrics);
+            }
+        });
+
+        HttpHelper http = new HttpHelper.Builder(RuntimeEnvironment.application).build();
+        return http.getJsonArray(mServer.url("/array"), Integer.class, HttpHelper.NO_CACHE,
+                new JsonElementCallback<Integer>() {
+                    @Override
+                    public void onElement(Integer element) {
+                        elements.add(element);
+                    }
+                });
+    }
+}
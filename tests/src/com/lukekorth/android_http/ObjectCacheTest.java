@@ -0,0 +1,201 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ObjectCacheTest {
+
+    private final AtomicInteger mVersion = new AtomicInteger(1);
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+    private ObjectCache mObjects;
+
+    static class Item {
+        int id;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                int version = mVersion.get();
+                String etag = "\"" + version + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Cache-Control",
+                        request.path.startsWith("/fresh") ? "max-age=60" : "max-age=0");
+
+                if (etag.equals(request.header("If-None-Match")))
+                    TestServer.send(exchange, 304, new byte[0]);
+                else
+                    TestServer.send(exchange, 200, ("{\"id\":" + version + "}").getBytes("UTF-8"));
+            }
+        });
+
+        mObjects = new ObjectCache(16, 1024 * 1024, ObjectCache.STRONG);
+        HttpHelper.setObjectCache(mObjects);
+        mHttp = new HttpHelper.Builder(RuntimeEnvironment.application).build();
+    }
+
+    @After
+    public void tearDown() {
+        HttpHelper.setObjectCache(null);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void servesFreshObjectsFromMemory() {
+        Item first = mHttp.get(mServer.url("/fresh"), Item.class, HttpHelper.CACHE);
+        Item second = mHttp.get(mServer.url("/fresh"), Item.class, HttpHelper.CACHE);
+
+        assertSame(first, second);
+        assertEquals(1, mServer.requests().size());
+        assertEquals(1, mObjects.getHitCount());
+    }
+
+    @Test
+    public void reusesStaleObjectsThatAreNotModified() {
+        Item first = mHttp.get(mServer.url("/stale"), Item.class, HttpHelper.CACHE);
+        Item second = mHttp.get(mServer.url("/stale"), Item.class, HttpHelper.CACHE);
+
+        assertSame(first, second);
+        assertEquals(2, mServer.requests().size());
+        assertEquals("\"1\"", mServer.requests().get(1).header("If-None-Match"));
+    }
+
+    @Test
+    public void dropsObjectsWhenTheETagChanges() {
+        Item first = mHttp.get(mServer.url("/stale"), Item.class, HttpHelper.CACHE);
+        mVersion.set(2);
+        Item second = mHttp.get(mServer.url("/stale"), Item.class, HttpHelper.CACHE);
+
+        assertNotSame(first, second);
+        assertEquals(1, first.id);
+        assertEquals(2, second.id);
+        assertSame(second, mHttp.get(mServer.url("/stale"), Item.class, HttpHelper.CACHE));
+    }
+
+    @Test
+    public void matchesValidators() {
+        ObjectCache cache = new ObjectCache(16, 100, ObjectCache.STRONG);
+        Object value = new Object();
+        cache.put("key", "url", value, 10, "\"a\"", null, 0);
+
+        assertNull(cache.getFresh("key", 0));
+        assertNull(cache.getValidated("key", "\"b\"", null, 0));
+        assertSame(value, cache.getValidated("key", "\"a\"", null, Long.MAX_VALUE));
+        assertSame(value, cache.getFresh("key", 0));
+
+        cache.invalidate("url", "\"b\"", null);
+        assertNull(cache.getValidated("key", "\"a\"", null, 0));
+    }
+
+    @Test
+    public void dropsTheOldObjectWhenANewOneIsTooLarge() {
+        ObjectCache cache = new ObjectCache(16, 100, ObjectCache.STRONG);
+        cache.put("key", "url", new Object(), 10, "\"a\"", null, Long.MAX_VALUE);
+        cache.put("key", "url", new Object(), 1000, "\"b\"", null, Long.MAX_VALUE);
+
+        assertNull(cache.getFresh("key", 0));
+        assertNull(cache.getValidated("key", "\"a\"", null, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void computesFreshnessFromMaxAge() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Cache-Control", "public, max-age=60");
+
+        assertAround(now + 60000, ObjectCache.getFreshUntil(connection(headers, 0, 0)));
+
+        headers.put("Age", "20");
+        assertAround(now + 40000, ObjectCache.getFreshUntil(connection(headers, 0, 0)));
+
+        // the date is 30s old, more than the Age header says
+        assertAround(now + 30000, ObjectCache.getFreshUntil(connection(headers, now - 30000, 0)));
+    }
+
+    @Test
+    public void computesFreshnessFromExpires() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, String> headers = new HashMap<String, String>();
+
+        assertEquals(0, ObjectCache.getFreshUntil(connection(headers, now, 0)));
+        assertAround(now + 10000, ObjectCache.getFreshUntil(connection(headers, now, now + 10000)));
+        assertEquals(now + 10000, ObjectCache.getFreshUntil(connection(headers, 0, now + 10000)));
+    }
+
+    @Test
+    public void neverTreatsUncacheableResponsesAsFresh() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Cache-Control", "no-cache, max-age=60");
+        assertEquals(0, ObjectCache.getFreshUntil(connection(headers, now, now + 10000)));
+
+        headers.put("Cache-Control", "no-store");
+        assertEquals(0, ObjectCache.getFreshUntil(connection(headers, now, now + 10000)));
+    }
+
+    private static void assertAround(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) < 1000);
+    }
+
+    private static HttpURLConnection connection(final Map<String, String> headers,
+            final long date, final long expires) throws IOException {
+        return new HttpURLConnection(new URL("http://example.com/")) {
+            @Override
+            public String getHeaderField(String name) {
+                return headers.get(name);
+            }
+
+            @Override
+            public long getDate() {
+                return date;
+            }
+
+            @Override
+            public long getExpiration() {
+                return expires;
+            }
+
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,85 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+
+import android.Manifest;
+import android.content.Context;
+import android.net.ConnectivityManager;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowConnectivityManager;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class OfflineFirstTest {
+
+    private final AtomicInteger mVersion = new AtomicInteger();
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+
+    static class Item {
+        int id;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=0");
+                TestServer.send(exchange, 200,
+                        ("{\"id\":" + mVersion.incrementAndGet() + "}").getBytes("UTF-8"));
+            }
+        });
+        mHttp = new HttpHelper.Builder(RuntimeEnvironment.application).build();
+
+        // cached, but already expired
+        assertEquals(1, get(HttpHelper.CACHE).id);
+
+        ConnectivityManager connectivity = (ConnectivityManager) RuntimeEnvironment.application
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        ShadowConnectivityManager shadow = Shadow.extract(connectivity);
+        shadow.setActiveNetworkInfo(null);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void readsTheCacheWhenOffline() {
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.ACCESS_NETWORK_STATE);
+
+        assertEquals(1, get(HttpHelper.OFFLINE_FIRST).id);
+        assertEquals(1, mServer.requests().size());
+    }
+
+    @Test
+    public void triesTheNetworkWithoutThePermission() {
+        ShadowApplication.getInstance().denyPermissions(Manifest.permission.ACCESS_NETWORK_STATE);
+
+        assertEquals(2, get(HttpHelper.OFFLINE_FIRST).id);
+        assertEquals(2, mServer.requests().size());
+    }
+
+    private Item get(int cache) {
+        return mHttp.get(mServer.url("/item"), Item.class, cache);
+    }
+}
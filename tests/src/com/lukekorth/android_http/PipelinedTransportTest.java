@@ -0,0 +1,315 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class PipelinedTransportTest {
+
+    private RawServer mServer;
+    private PipelinedTransport mTransport;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() throws IOException {
+        mExecutor.shutdownNow();
+        if (mTransport != null)
+            mTransport.evictAll();
+        if (mServer != null)
+            mServer.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void streamsChunkedResponses() throws Exception {
+        final CountDownLatch rest = new CountDownLatch(1);
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                connection.readRequest();
+                connection.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "5\r\nhello\r\n");
+                if (!rest.await(2, TimeUnit.SECONDS))
+                    throw new AssertionError("The first chunk was not handed out on its own");
+                connection.write("6;name=value\r\n world\r\n0\r\nX-Trailer: 1\r\n\r\n");
+
+                connection.respond(connection.readRequest());
+            }
+        });
+        mTransport = new PipelinedTransport();
+
+        HttpURLConnection urlConnection = mTransport.open(new URL(mServer.url("/chunked")));
+        InputStream in = urlConnection.getInputStream();
+        byte[] first = new byte[5];
+        assertEquals(5, read(in, first));
+        // the first chunk arrives before the server has written the rest
+        assertEquals("hello", new String(first, "UTF-8"));
+
+        rest.countDown();
+        assertEquals(" world", new String(TestServer.readAll(in), "UTF-8"));
+        in.close();
+
+        assertEquals("/next", get("/next"));
+        assertEquals(1, mServer.connections());
+        assertEquals(new ArrayList<Throwable>(), mServer.errors());
+    }
+
+    @Test(timeout = 10000)
+    public void pipelinesUpToTheMaxDepth() throws Exception {
+        final int depth = 3;
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                // nothing is answered until every request has been written
+                List<String> paths = new ArrayList<String>();
+                for (int i = 0; i < depth; i++)
+                    paths.add(connection.readRequest());
+
+                for (String path : paths)
+                    connection.respond(path);
+            }
+        });
+        mTransport = new PipelinedTransport(1, depth);
+
+        List<Future<String>> responses = new ArrayList<Future<String>>();
+        for (int i = 0; i < depth; i++)
+            responses.add(getAsync("/" + i));
+
+        for (int i = 0; i < depth; i++)
+            assertEquals("/" + i, responses.get(i).get(5, TimeUnit.SECONDS));
+
+        assertEquals(1, mServer.connections());
+        assertEquals(new ArrayList<Throwable>(), mServer.errors());
+    }
+
+    @Test(timeout = 10000)
+    public void opensAnotherConnectionWhenThePipelineIsFull() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(2);
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                String path = connection.readRequest();
+                connected.countDown();
+                connected.await(5, TimeUnit.SECONDS);
+                connection.respond(path);
+            }
+        });
+        mTransport = new PipelinedTransport(2, 1);
+
+        Future<String> a = getAsync("/a");
+        Future<String> b = getAsync("/b");
+
+        assertEquals("/a", a.get(5, TimeUnit.SECONDS));
+        assertEquals("/b", b.get(5, TimeUnit.SECONDS));
+        assertEquals(2, mServer.connections());
+    }
+
+    @Test(timeout = 10000)
+    public void resendsRequestsLeftUnansweredWhenTheConnectionCloses() throws Exception {
+        final List<String> resent = new CopyOnWriteArrayList<String>();
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                if (index == 0) {
+                    String first = connection.readRequest();
+                    connection.readRequest();
+                    connection.write("HTTP/1.1 200 OK\r\nConnection: close\r\n"
+                            + "Content-Length: " + first.length() + "\r\n\r\n" + first);
+                    connection.close();
+                } else {
+                    String path = connection.readRequest();
+                    resent.add(path);
+                    connection.respond(path);
+                }
+            }
+        });
+        mTransport = new PipelinedTransport(1, 2);
+
+        Future<String> a = getAsync("/a");
+        Thread.sleep(100);
+        Future<String> b = getAsync("/b");
+
+        assertEquals("/a", a.get(5, TimeUnit.SECONDS));
+        assertEquals("/b", b.get(5, TimeUnit.SECONDS));
+        assertEquals(2, mServer.connections());
+        assertEquals(1, resent.size());
+        assertEquals("/b", resent.get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void readsBodiesThatEndWithTheConnection() throws Exception {
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                String path = connection.readRequest();
+                if (index == 0) {
+                    connection.write("HTTP/1.1 200 OK\r\n\r\nuntil closed");
+                    connection.close();
+                } else {
+                    connection.respond(path);
+                }
+            }
+        });
+        mTransport = new PipelinedTransport();
+
+        assertEquals("until closed", get("/a"));
+        assertEquals("/b", get("/b"));
+        assertEquals(2, mServer.connections());
+    }
+
+    @Test(timeout = 10000)
+    public void keepsTheConnectionWhenAShortBodyIsClosedEarly() throws Exception {
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                connection.readRequest();
+                connection.respond("a longer body");
+                connection.respond(connection.readRequest());
+            }
+        });
+        mTransport = new PipelinedTransport();
+
+        HttpURLConnection urlConnection = mTransport.open(new URL(mServer.url("/a")));
+        InputStream in = urlConnection.getInputStream();
+        assertEquals('a', in.read());
+        in.close();
+
+        assertEquals("/b", get("/b"));
+        assertEquals(1, mServer.connections());
+    }
+
+    @Test(timeout = 10000)
+    public void sendsAPostAgainWhenAKeptAliveConnectionWasClosed() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        mServer = new RawServer(new RawServer.Script() {
+            @Override
+            public void run(int index, RawServer.Connection connection) throws Exception {
+                String path = connection.readRequest();
+                connection.respond(path);
+                if (index == 0) {
+                    // the server times the idle connection out
+                    connection.close();
+                    closed.countDown();
+                }
+            }
+        });
+        mTransport = new PipelinedTransport();
+
+        assertEquals("/a", get("/a"));
+        closed.await(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+
+        assertEquals("/b", post("/b", "body"));
+        assertEquals(2, mServer.connections());
+    }
+
+    @Test(timeout = 10000)
+    public void cancelsWhileConnecting() throws Exception {
+        // a listener that never accepts and has a full backlog leaves
+        // connects hanging
+        ServerSocket full = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        List<Socket> backlog = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(full.getLocalSocketAddress(), 200);
+                    backlog.add(socket);
+                } catch (IOException e) {
+                    socket.close();
+                    break;
+                }
+            }
+
+            mTransport = new PipelinedTransport();
+            final HttpURLConnection urlConnection = mTransport.open(new URL("http://127.0.0.1:"
+                    + full.getLocalPort() + "/"));
+            urlConnection.setConnectTimeout(8000);
+            Future<Integer> response = mExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return urlConnection.getResponseCode();
+                }
+            });
+
+            Thread.sleep(300);
+            long start = System.currentTimeMillis();
+            urlConnection.disconnect();
+            try {
+                response.get(2, TimeUnit.SECONDS);
+                fail("The request was answered");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        } finally {
+            for (Socket socket : backlog)
+                socket.close();
+            full.close();
+        }
+    }
+
+    private String get(String path) throws IOException {
+        HttpURLConnection urlConnection = mTransport.open(new URL(mServer.url(path)));
+        InputStream in = urlConnection.getInputStream();
+        try {
+            return new String(TestServer.readAll(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private String post(String path, String body) throws IOException {
+        HttpURLConnection urlConnection = mTransport.open(new URL(mServer.url(path)));
+        urlConnection.setDoOutput(true);
+        OutputStream out = urlConnection.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+
+        InputStream in = urlConnection.getInputStream();
+        try {
+            return new String(TestServer.readAll(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private Future<String> getAsync(final String path) {
+        return mExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return get(path);
+            }
+        });
+    }
+
+    private static int read(InputStream in, byte[] buffer) throws IOException {
+        int count = 0;
+        int read;
+        while (count < buffer.length && (read = in.read(buffer, count, buffer.length - count)) != -1)
+            count += read;
+
+        return count;
+    }
+}
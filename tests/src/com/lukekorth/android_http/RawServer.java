@@ -0,0 +1,142 @@
+package com.lukekorth.android_http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A local server that hands each accepted socket to a {@link Script}, for
+ * tests that need control over how responses are framed and when they are
+ * written, which {@link TestServer} does not give.
+ */
+class RawServer {
+
+    interface Script {
+        /**
+         * @param index of the connection, counting from 0.
+         */
+        void run(int index, Connection connection) throws Exception;
+    }
+
+    static class Connection {
+        private final Socket mSocket;
+        private final InputStream mIn;
+        private final OutputStream mOut;
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mSocket.setSoTimeout(5000);
+            mIn = new BufferedInputStream(socket.getInputStream());
+            mOut = socket.getOutputStream();
+        }
+
+        /**
+         * Reads a request and any body it has.
+         *
+         * @return the path that was requested.
+         */
+        String readRequest() throws IOException {
+            String requestLine = readLine();
+            if (requestLine == null)
+                throw new IOException("Connection closed");
+
+            int length = 0;
+            String line;
+            while ((line = readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("content-length:"))
+                    length = Integer.parseInt(line.substring(15).trim());
+            }
+
+            for (int i = 0; i < length; i++)
+                mIn.read();
+
+            return requestLine.split(" ")[1];
+        }
+
+        void write(String text) throws IOException {
+            mOut.write(text.getBytes("ISO-8859-1"));
+            mOut.flush();
+        }
+
+        /** Writes a response with a Content-Length. */
+        void respond(String body) throws IOException {
+            write("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = mIn.read()) != -1) {
+                if (c == '\n')
+                    return line.toString().trim();
+
+                line.append((char) c);
+            }
+
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final List<Throwable> mErrors = Collections.synchronizedList(new ArrayList<Throwable>());
+    private volatile int mConnections;
+
+    RawServer(final Script script) throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServerSocket.accept();
+                        final int index = mConnections++;
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    script.run(index, new Connection(socket));
+                                } catch (Throwable e) {
+                                    mErrors.add(e);
+                                }
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // closed by shutdown()
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    int connections() {
+        return mConnections;
+    }
+
+    /** Errors thrown by the scripts. */
+    List<Throwable> errors() {
+        synchronized (mErrors) {
+            return new ArrayList<Throwable>(mErrors);
+        }
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+    }
+}
@@ -0,0 +1,166 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RequestDispatcherTest {
+
+    private final AtomicInteger mFinished = new AtomicInteger();
+
+    private final Runnable mCountFinished = new Runnable() {
+        @Override
+        public void run() {
+            mFinished.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void finishesCompletedRequests() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher(1, 1);
+        Future<String> future = dispatcher.enqueue("http://example.com/", 0, value("done"), null,
+                mCountFinished);
+
+        assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        awaitFinished(1);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void finishesRequestsCancelledWhileWaiting() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.enqueue("http://example.com/a", 0, blocking(release), null, mCountFinished);
+        Future<String> waiting = dispatcher.enqueue("http://example.com/b", 0, value("b"), null,
+                mCountFinished);
+
+        assertTrue(waiting.cancel(true));
+        assertEquals(1, mFinished.get());
+
+        release.countDown();
+        awaitFinished(2);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void cancelsRequestsEnqueuedAfterShutdown() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher(1, 1);
+        dispatcher.shutdown();
+
+        Future<String> future = dispatcher.enqueue("http://example.com/", 0, value("late"), null,
+                mCountFinished);
+
+        assertTrue(future.isCancelled());
+        assertEquals(1, mFinished.get());
+    }
+
+    @Test
+    public void shutdownFinishesWaitingRequests() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.enqueue("http://example.com/a", 0, blocking(release), null, mCountFinished);
+        for (int i = 0; i < 3; i++)
+            dispatcher.enqueue("http://example.com/" + i, 0, value("x"), null, mCountFinished);
+
+        dispatcher.shutdown();
+        release.countDown();
+
+        awaitFinished(4);
+    }
+
+    @Test
+    public void keepsTheHostSlotUntilACancelledRequestReturns() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher(2, 1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // stuck in a slow response, blocking socket reads ignore interrupts
+        Future<String> slow = dispatcher.enqueue("http://example.com/slow", 0,
+                new Callable<String>() {
+                    @Override
+                    public String call() {
+                        enter(running, maxRunning);
+                        started.countDown();
+                        while (true) {
+                            try {
+                                release.await();
+                                break;
+                            } catch (InterruptedException e) {
+                                // keep blocking
+                            }
+                        }
+                        running.decrementAndGet();
+                        return "slow";
+                    }
+                }, null, mCountFinished);
+        Future<String> next = dispatcher.enqueue("http://example.com/next", 0,
+                new Callable<String>() {
+                    @Override
+                    public String call() {
+                        enter(running, maxRunning);
+                        running.decrementAndGet();
+                        return "next";
+                    }
+                }, null, mCountFinished);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(slow.cancel(true));
+        Thread.sleep(200);
+        assertFalse(next.isDone());
+
+        release.countDown();
+        assertEquals("next", next.get(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        awaitFinished(2);
+        dispatcher.shutdown();
+    }
+
+    private static void enter(AtomicInteger running, AtomicInteger maxRunning) {
+        int now = running.incrementAndGet();
+        int max;
+        while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now)) {
+        }
+    }
+
+    private void awaitFinished(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mFinished.get() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(count, mFinished.get());
+    }
+
+    private static Callable<String> value(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+
+    private static Callable<String> blocking(final CountDownLatch release) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                release.await(5, TimeUnit.SECONDS);
+                return "released";
+            }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ResponseSourcesTest {
+
+    private final AtomicInteger mVersion = new AtomicInteger(1);
+    private final List<RequestMetrics> mFinished = new CopyOnWriteArrayList<RequestMetrics>();
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+
+    static class Item {
+        int id;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                String etag = "\"" + mVersion.get() + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Cache-Control",
+                        request.path.startsWith("/fresh") ? "max-age=60" : "max-age=0");
+
+                if (etag.equals(request.header("If-None-Match")))
+                    TestServer.send(exchange, 304, new byte[0]);
+                else
+                    TestServer.send(exchange, 200,
+                            ("{\"id\":" + mVersion.get() + "}").getBytes("UTF-8"));
+            }
+        });
+
+        HttpHelper.setRequestListener(new RequestListener() {
+            @Override
+            public void onRequestFinished(RequestMetrics metrics) {
+                mFinished.add(metrics);
+            }
+        });
+        mHttp = new HttpHelper.Builder(RuntimeEnvironment.application).build();
+    }
+
+    @After
+    public void tearDown() {
+        HttpHelper.setRequestListener(null);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void attributesCacheHits() {
+        assertEquals(RequestMetrics.OUTCOME_NETWORK, get("/fresh"));
+        assertEquals(RequestMetrics.OUTCOME_CACHE_HIT, get("/fresh"));
+        assertEquals(1, mServer.requests().size());
+    }
+
+    @Test
+    public void attributesConditionalHits() {
+        assertEquals(RequestMetrics.OUTCOME_NETWORK, get("/stale"));
+        assertEquals(RequestMetrics.OUTCOME_VALIDATED, get("/stale"));
+        assertEquals(2, mServer.requests().size());
+        assertEquals("\"1\"", mServer.requests().get(1).header("If-None-Match"));
+    }
+
+    @Test
+    public void attributesChangedResponsesToTheNetwork() {
+        assertEquals(RequestMetrics.OUTCOME_NETWORK, get("/stale"));
+        mVersion.set(2);
+        assertEquals(RequestMetrics.OUTCOME_NETWORK, get("/stale"));
+    }
+
+    @Test
+    public void reportsConnectionsItCannotInspectAsUnknown() throws IOException {
+        assertEquals(RequestMetrics.OUTCOME_NETWORK, get("/fresh"));
+
+        HttpURLConnection other = new HttpURLConnection(new URL(mServer.url("/other"))) {
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+        };
+        assertEquals(RequestMetrics.OUTCOME_UNKNOWN, ResponseSources.getOutcome(other));
+
+        // the cache's own connections are still told apart
+        assertEquals(RequestMetrics.OUTCOME_CACHE_HIT, get("/fresh"));
+    }
+
+    private int get(String path) {
+        int finished = mFinished.size();
+        Item item = mHttp.get(mServer.url(path), Item.class, HttpHelper.CACHE);
+        assertEquals(mVersion.get(), item.id);
+        assertEquals(finished + 1, mFinished.size());
+
+        return mFinished.get(finished).getOutcome();
+    }
+}
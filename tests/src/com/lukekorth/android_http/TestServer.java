@@ -0,0 +1,108 @@
+package com.lukekorth.android_http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server for the tests. Every request is recorded before it is
+ * handed to the {@link Responder} the test set.
+ */
+class TestServer {
+
+    interface Responder {
+        void respond(Request request, HttpExchange exchange) throws IOException;
+    }
+
+    static class Request {
+        final String method;
+        final String path;
+        final com.sun.net.httpserver.Headers headers;
+        final byte[] body;
+
+        Request(HttpExchange exchange, byte[] body) {
+            this.method = exchange.getRequestMethod();
+            this.path = exchange.getRequestURI().toString();
+            this.headers = exchange.getRequestHeaders();
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.getFirst(name);
+        }
+    }
+
+    private final HttpServer mServer;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private volatile Responder mResponder;
+
+    TestServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Request request = new Request(exchange, readAll(exchange.getRequestBody()));
+                mRequests.add(request);
+                try {
+                    mResponder.respond(request, exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // concurrent requests, like hedged ones, are handled concurrently
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    void setResponder(Responder responder) {
+        mResponder = responder;
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    List<Request> requests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    void shutdown() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+
+        return out.toByteArray();
+    }
+}
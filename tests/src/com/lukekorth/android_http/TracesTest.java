@@ -0,0 +1,25 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TracesTest {
+
+    @Test
+    public void cutsTextOff() {
+        assertEquals("abc", Traces.payload("abc").build(-1));
+        assertEquals("abc", Traces.payload(new StringBuilder("abc")).build(3));
+        assertEquals("ab... (3 chars)", Traces.payload(new StringBuilder("abc")).build(2));
+    }
+
+    @Test
+    public void decodesNoMoreBytesThanAreLogged() throws Exception {
+        byte[] bytes = "héllo".getBytes("UTF-8");
+
+        assertEquals("héllo", Traces.payload(bytes, bytes.length, "UTF-8").build(-1));
+        assertEquals("héllo", Traces.payload(bytes, bytes.length, "UTF-8").build(5));
+        assertEquals("hé... (6 bytes)", Traces.payload(bytes, bytes.length, "UTF-8").build(2));
+        assertEquals("hél", Traces.payload(bytes, 4, "UTF-8").build(10));
+    }
+}
@@ -0,0 +1,190 @@
+package com.lukekorth.android_http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class UploadResumableTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TestServer mServer;
+    private HttpHelper mHttp;
+
+    /** Keeps what it was sent and fails chunks while {@code failing} is set. */
+    private static class UploadResponder implements TestServer.Responder {
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        final long total;
+        volatile boolean failing;
+
+        UploadResponder(long total) {
+            this.total = total;
+        }
+
+        @Override
+        public void respond(TestServer.Request request, HttpExchange exchange)
+                throws IOException {
+            String range = request.header("Content-Range");
+            if (range.startsWith("bytes */")) {
+                confirm(exchange);
+            } else if (failing) {
+                TestServer.send(exchange, 503, new byte[0]);
+            } else {
+                long start = Long.parseLong(range.substring(6, range.indexOf('-')));
+                if (start != stored.size()) {
+                    confirm(exchange);
+                } else {
+                    stored.write(request.body);
+                    if (stored.size() == total)
+                        TestServer.send(exchange, 201, "done".getBytes("UTF-8"));
+                    else
+                        confirm(exchange);
+                }
+            }
+        }
+
+        private void confirm(HttpExchange exchange) throws IOException {
+            if (stored.size() > 0)
+                exchange.getResponseHeaders().set("Range", "bytes=0-" + (stored.size() - 1));
+            TestServer.send(exchange, 308, new byte[0]);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+        mHttp = new HttpHelper(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void uploadsEveryChunk() throws IOException {
+        File file = file(3 * CHUNK_SIZE + 100);
+        UploadResponder responder = new UploadResponder(file.length());
+        mServer.setResponder(responder);
+
+        String response = mHttp.uploadResumable(mServer.url("/upload"), file, CHUNK_SIZE, null);
+
+        assertEquals("done", response);
+        assertArrayEquals(contents(file), responder.stored.toByteArray());
+        assertEquals(4, mServer.requests().size());
+    }
+
+    @Test
+    public void resumesFromTheConfirmedOffset() throws IOException {
+        File file = file(3 * CHUNK_SIZE);
+        final UploadResponder responder = new UploadResponder(file.length());
+        mServer.setResponder(new TestServer.Responder() {
+            @Override
+            public void respond(TestServer.Request request, HttpExchange exchange)
+                    throws IOException {
+                // fail everything after the first chunk, decided before
+                // answering as the next request may be handled right away
+                if (responder.stored.size() > 0)
+                    responder.failing = true;
+                responder.respond(request, exchange);
+            }
+        });
+
+        String url = mServer.url("/upload");
+        assertNull(mHttp.uploadResumable(url, file, CHUNK_SIZE, null));
+        assertEquals(CHUNK_SIZE, responder.stored.size());
+
+        responder.failing = false;
+        mServer.setResponder(responder);
+        int before = mServer.requests().size();
+        assertEquals("done", mHttp.uploadResumable(url, file, CHUNK_SIZE, null));
+
+        List<String> ranges = new ArrayList<String>();
+        List<TestServer.Request> requests = mServer.requests();
+        for (TestServer.Request request : requests.subList(before, requests.size()))
+            ranges.add(request.header("Content-Range"));
+
+        // the offset is asked for first, the first chunk is not sent again
+        assertEquals("bytes */" + file.length(), ranges.get(0));
+        assertEquals("bytes " + CHUNK_SIZE + "-" + (2 * CHUNK_SIZE - 1) + "/" + file.length(),
+                ranges.get(1));
+        assertArrayEquals(contents(file), responder.stored.toByteArray());
+    }
+
+    @Test
+    public void checkpointsExpire() throws Exception {
+        File file = file(10);
+        String key = UploadCheckpoints.key("http://example.com/upload", file);
+
+        UploadCheckpoints fresh = new UploadCheckpoints(mFolder.newFolder(), 64 * 1024);
+        fresh.put(key, 5);
+        assertEquals(5, fresh.get(key));
+        fresh.remove(key);
+        assertEquals(-1, fresh.get(key));
+
+        UploadCheckpoints expiring = new UploadCheckpoints(mFolder.newFolder(), 64 * 1024, 1);
+        expiring.put(key, 5);
+        Thread.sleep(10);
+        assertEquals(-1, expiring.get(key));
+    }
+
+    @Test
+    public void checkpointsAreTiedToTheFile() throws Exception {
+        File file = file(10);
+        String url = "http://example.com/upload";
+        UploadCheckpoints checkpoints = new UploadCheckpoints(mFolder.newFolder(), 64 * 1024);
+        checkpoints.put(UploadCheckpoints.key(url, file), 5);
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+
+        assertEquals(-1, checkpoints.get(UploadCheckpoints.key(url, file)));
+    }
+
+    private File file(int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) i;
+
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static byte[] contents(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return TestServer.readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+}